@@ -5,7 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +180,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +196,15 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// files can only be read into arrays, so stage the page in one
+	byte[] page = new byte[pageSize];
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	memory.position(paddr);
+	memory.put(page);
+
+	Machine.processor().invalidateDecodeCache(ppn);
     }
 
     /** The COFF object to which this section belongs. */
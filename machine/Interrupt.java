@@ -5,8 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.util.TreeSet;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +39,19 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts are normally kept in a balanced tree. If
+ * <tt>Interrupt.timingWheel</tt> is set, they are kept in a hierarchical
+ * timing wheel instead, which makes scheduling and handling an interrupt
+ * constant time on average. Interrupts are handled in exactly the same order
+ * either way.
+ *
+ * <p>
+ * Scheduling an interrupt returns a handle that can cancel or reschedule it,
+ * so a device need not poll for input. Instead, a host thread waiting for
+ * input posts an action that is run at the next tick, and the action
+ * schedules the device's interrupt.
  */
 public final class Interrupt {
     /**
@@ -53,7 +67,11 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	if (Config.getBoolean("Interrupt.timingWheel", false))
+	    pending = new TimingWheel();
+	else
+	    pending = new SortedQueue();
     }
 
     /**
@@ -102,6 +120,22 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Advance the simulated time to the next pending interrupt and handle it.
+     * This has exactly the same effect as repeatedly disabling and
+     * re-enabling interrupts until some interrupt handler runs, but takes a
+     * single step. It is meant for an idle thread, which has nothing to do
+     * until an interrupt arrives. Interrupts must be enabled.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	if (pending.isEmpty())
+	    tick(true);
+	else
+	    tick(true, ticksUntilDue(true));
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -120,39 +154,91 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    private PendingInterrupt schedule(long when, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = new PendingInterrupt(type, handler);
+	schedule(toOccur, when);
+	return toOccur;
+    }
+
+    private void schedule(PendingInterrupt toOccur, long when) {
 	Lib.assertTrue(when>0);
+
+	// the queue is ordered by time and id, so take it out before changing
+	if (toOccur.scheduled)
+	    pending.remove(toOccur);
 	
-	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	toOccur.time = privilege.stats.totalTicks + when;
+	toOccur.id = numPendingInterruptsCreated++;
 
 	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+		  "Scheduling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
 
 	pending.add(toOccur);
+	toOccur.scheduled = true;
+    }
+
+    private boolean cancel(PendingInterrupt toOccur) {
+	if (!toOccur.scheduled)
+	    return false;
+
+	Lib.debug(dbgInt,
+		  "Cancelling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
+
+	pending.remove(toOccur);
+	toOccur.scheduled = false;
+	return true;
+    }
+
+    private void runPosted() {
+	Runnable action;
+	while ((action = posted.poll()) != null)
+	    action.run();
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int ticks) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += (long) ticks * Stats.KernelTick;
+	    stats.totalTicks += (long) ticks * Stats.KernelTick;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += (long) ticks * Stats.UserTick;
+	    stats.totalTicks += (long) ticks * Stats.UserTick;
 	}
 
 	if (Lib.test(dbgInt))
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
+	if (!posted.isEmpty())
+	    runPosted();
 	checkIfDue();
 	enabled = true;
     }
 
+    private int ticksUntilDue(boolean inKernelMode) {
+	// every tick has to be printed when debugging
+	if (Lib.test(dbgInt))
+	    return 1;
+
+	if (pending.isEmpty())
+	    return Integer.MAX_VALUE;
+
+	long delta = pending.first().time - privilege.stats.totalTicks;
+	long tick = inKernelMode ? Stats.KernelTick : Stats.UserTick;
+	long ticks = (delta + tick - 1) / tick;
+
+	return (int) Math.max(1, Math.min(ticks, Integer.MAX_VALUE));
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,15 +250,15 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.first().time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (!pending.isEmpty() && pending.first().time <= time) {
+	    PendingInterrupt next = pending.first();
+	    pending.removeFirst();
+	    next.scheduled = false;
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -192,8 +278,8 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (Iterator<PendingInterrupt> i=pending.iterator(); i.hasNext(); ) {
+	    PendingInterrupt toOccur = i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,12 +287,23 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
+    private class PendingInterrupt
+	implements Comparable, Privilege.InterruptHandle {
+	PendingInterrupt(String type, Runnable handler) {
 	    this.type = type;
 	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	}
+
+	public boolean cancel() {
+	    return Interrupt.this.cancel(this);
+	}
+
+	public void reschedule(long when) {
+	    Interrupt.this.schedule(this, when);
+	}
+
+	public boolean isPending() {
+	    return scheduled;
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +327,411 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private boolean scheduled = false;
+
+	/** The timing wheel list holding this interrupt, if any. */
+	private int level, slot;
+	private PendingInterrupt prev, next;
+    }
+
+    /**
+     * A set of pending interrupts, ordered by time and then by the order in
+     * which they were scheduled.
+     */
+    private interface PendingQueue {
+	void add(PendingInterrupt toOccur);
+	boolean isEmpty();
+	PendingInterrupt first();
+	void removeFirst();
+	void remove(PendingInterrupt toOccur);
+	Iterator<PendingInterrupt> iterator();
+    }
+
+    private class SortedQueue implements PendingQueue {
+	public void add(PendingInterrupt toOccur) {
+	    set.add(toOccur);
+	}
+
+	public boolean isEmpty() {
+	    return set.isEmpty();
+	}
+
+	public PendingInterrupt first() {
+	    return set.first();
+	}
+
+	public void removeFirst() {
+	    set.pollFirst();
+	}
+
+	public void remove(PendingInterrupt toOccur) {
+	    set.remove(toOccur);
+	}
+
+	public Iterator<PendingInterrupt> iterator() {
+	    return set.iterator();
+	}
+
+	private TreeSet<PendingInterrupt> set = new TreeSet<PendingInterrupt>();
+    }
+
+    /**
+     * A hierarchical timing wheel. Times are split into 8-bit digits, and
+     * each level of the wheel has one slot per value of its digit. An
+     * interrupt is kept at the level of the highest digit in which its time
+     * differs from the wheel's current time, in the slot for its own value of
+     * that digit, so every interrupt at a lower level is due before every
+     * interrupt at a higher level. Interrupts too far in the future for the
+     * wheel wait in a tree until the current time catches up with them.
+     *
+     * <p>
+     * Each slot is a list kept in scheduling order, and all interrupts in a
+     * slot at the lowest level are due at the same time, so the first
+     * interrupt in the lowest occupied slot is always the next to occur. When
+     * the current time moves into the range of a higher level's slot, that
+     * slot's interrupts are moved down to the levels they now belong to.
+     */
+    private class TimingWheel implements PendingQueue {
+	public void add(PendingInterrupt toOccur) {
+	    Lib.assertTrue(toOccur.time >= current);
+	    
+	    place(toOccur);
+	    size++;
+
+	    if (earliest != null && toOccur.compareTo(earliest) < 0)
+		earliest = toOccur;
+	}
+
+	public boolean isEmpty() {
+	    return size == 0;
+	}
+
+	public PendingInterrupt first() {
+	    if (earliest == null && size > 0)
+		earliest = findEarliest();
+
+	    return earliest;
+	}
+
+	public void removeFirst() {
+	    PendingInterrupt first = first();
+
+	    remove(first);
+
+	    // nothing left is due before this, so the wheel can catch up to it
+	    advance(first.time);
+	}
+
+	public void remove(PendingInterrupt toOccur) {
+	    if (toOccur.level < 0)
+		overflow.remove(toOccur);
+	    else
+		unlink(toOccur);
+
+	    size--;
+	    if (toOccur == earliest)
+		earliest = null;
+	}
+
+	public Iterator<PendingInterrupt> iterator() {
+	    TreeSet<PendingInterrupt> all =
+		new TreeSet<PendingInterrupt>(overflow);
+
+	    for (int level=0; level<levels; level++) {
+		for (int slot=0; slot<slots; slot++) {
+		    for (PendingInterrupt p=heads[level][slot]; p!=null;
+			 p=p.next)
+			all.add(p);
+		}
+	    }
+
+	    return all.iterator();
+	}
+
+	private PendingInterrupt findEarliest() {
+	    for (int level=0; level<levels; level++) {
+		int slot = firstSlot(level);
+		if (slot < 0)
+		    continue;
+
+		// the list is in scheduling order, so keep the first of a tie
+		PendingInterrupt earliest = heads[level][slot];
+		for (PendingInterrupt p=earliest.next; p!=null; p=p.next) {
+		    if (p.time < earliest.time)
+			earliest = p;
+		}
+		
+		return earliest;
+	    }
+
+	    return overflow.first();
+	}
+
+	private void place(PendingInterrupt toOccur) {
+	    long diff = toOccur.time ^ current;
+	    int level = 0;
+	    while (level < levels && (diff >>> (bits*(level+1))) != 0)
+		level++;
+
+	    if (level == levels) {
+		toOccur.level = -1;
+		overflow.add(toOccur);
+		return;
+	    }
+
+	    int slot = (int) (toOccur.time >>> (bits*level)) & (slots-1);
+	    toOccur.level = level;
+	    toOccur.slot = slot;
+
+	    // usually the newest interrupt in the slot, so search from the end
+	    PendingInterrupt after = tails[level][slot];
+	    while (after != null && after.id > toOccur.id)
+		after = after.prev;
+
+	    toOccur.prev = after;
+	    toOccur.next = (after == null) ? heads[level][slot] : after.next;
+
+	    if (toOccur.next != null)
+		toOccur.next.prev = toOccur;
+	    else
+		tails[level][slot] = toOccur;
+
+	    if (after != null)
+		after.next = toOccur;
+	    else
+		heads[level][slot] = toOccur;
+
+	    occupied[level*words + slot/64] |= 1L << (slot%64);
+	}
+
+	private void unlink(PendingInterrupt toOccur) {
+	    int level = toOccur.level, slot = toOccur.slot;
+
+	    if (toOccur.prev != null)
+		toOccur.prev.next = toOccur.next;
+	    else
+		heads[level][slot] = toOccur.next;
+
+	    if (toOccur.next != null)
+		toOccur.next.prev = toOccur.prev;
+	    else
+		tails[level][slot] = toOccur.prev;
+
+	    if (heads[level][slot] == null)
+		occupied[level*words + slot/64] &= ~(1L << (slot%64));
+
+	    toOccur.prev = toOccur.next = null;
+	}
+
+	/**
+	 * Move the wheel's current time forward. No pending interrupt may be
+	 * due before the new time.
+	 */
+	private void advance(long time) {
+	    long diff = time ^ current;
+	    current = time;
+
+	    if (diff == 0)
+		return;
+
+	    // only the slot for the highest digit that changed needs to move
+	    int level = (63 - Long.numberOfLeadingZeros(diff)) / bits;
+	    
+	    if (level >= levels) {
+		while (!overflow.isEmpty() &&
+		       ((overflow.first().time ^ current) >>> (bits*levels)) == 0)
+		    place(overflow.pollFirst());
+		return;
+	    }
+
+	    int slot = (int) (time >>> (bits*level)) & (slots-1);
+	    PendingInterrupt p = heads[level][slot];
+
+	    heads[level][slot] = tails[level][slot] = null;
+	    occupied[level*words + slot/64] &= ~(1L << (slot%64));
+
+	    while (p != null) {
+		PendingInterrupt next = p.next;
+		p.prev = p.next = null;
+		place(p);
+		p = next;
+	    }
+	}
+
+	private int firstSlot(int level) {
+	    for (int i=0; i<words; i++) {
+		long used = occupied[level*words + i];
+		if (used != 0)
+		    return i*64 + Long.numberOfTrailingZeros(used);
+	    }
+
+	    return -1;
+	}
+
+	private static final int bits = 8, slots = 1<<bits, levels = 4;
+	private static final int words = slots/64;
+
+	private long current = 0;
+	private int size = 0;
+	private PendingInterrupt earliest = null;
+
+	private PendingInterrupt[][] heads =
+	    new PendingInterrupt[levels][slots];
+	private PendingInterrupt[][] tails =
+	    new PendingInterrupt[levels][slots];
+	private long[] occupied = new long[levels*words];
+	private TreeSet<PendingInterrupt> overflow =
+	    new TreeSet<PendingInterrupt>();
+    }
+
+    /**
+     * Tests whether the timing wheel is working. Replays a random schedule
+     * against a tree and a timing wheel of its own at once, on a clock of its
+     * own, scheduling, cancelling, rescheduling and handling interrupts, some
+     * of them too far away for the wheel. Checks that both queues always
+     * agree on which interrupt is next.
+     */
+    public static void selfTest() {
+	Interrupt interrupt = Machine.interrupt();
+	PendingQueue sorted = interrupt.new SortedQueue();
+	PendingQueue wheel = interrupt.new TimingWheel();
+	ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+	long time = 0, id = 0;
+	int handled = 0;
+
+	for (int i=0; i<200000 || !sorted.isEmpty(); i++) {
+	    int op = (i < 200000) ? Lib.random(8) : 7;
+
+	    if (op < 4) {
+		PendingInterrupt toOccur =
+		    interrupt.new PendingInterrupt("test", null);
+		toOccur.time = time + randomDelay();
+		toOccur.id = id++;
+		toOccur.scheduled = true;
+		sorted.add(toOccur);
+		wheel.add(toOccur);
+		all.add(toOccur);
+	    }
+	    else if (op < 6 && !all.isEmpty()) {
+		// take a random interrupt out, and maybe put it back later
+		int index = Lib.random(all.size());
+		PendingInterrupt toOccur = all.get(index);
+		all.set(index, all.get(all.size()-1));
+		all.remove(all.size()-1);
+
+		if (toOccur.scheduled) {
+		    sorted.remove(toOccur);
+		    wheel.remove(toOccur);
+		    toOccur.scheduled = false;
+
+		    if (op == 5) {
+			toOccur.time = time + randomDelay();
+			toOccur.id = id++;
+			toOccur.scheduled = true;
+			sorted.add(toOccur);
+			wheel.add(toOccur);
+			all.add(toOccur);
+		    }
+		}
+	    }
+	    else {
+		time += (i < 200000) ? randomDelay() : Long.MAX_VALUE/2 - time;
+
+		while (!sorted.isEmpty() && sorted.first().time <= time) {
+		    PendingInterrupt next = sorted.first();
+		    Lib.assertTrue(wheel.first() == next);
+
+		    sorted.removeFirst();
+		    wheel.removeFirst();
+		    next.scheduled = false;
+		    handled++;
+		}
+	    }
+
+	    Lib.assertTrue(sorted.isEmpty() == wheel.isEmpty());
+	    Lib.assertTrue(sorted.isEmpty() || sorted.first() == wheel.first());
+	}
+
+	System.out.println("Interrupt: " + handled
+			   + " interrupts handled in the same order by the tree"
+			   + " and the timing wheel passed");
+    }
+
+    /**
+     * Return a random delay for <tt>selfTest()</tt>: usually a few ticks, a
+     * timer period or a disk seek, and sometimes more than the wheel holds.
+     */
+    private static long randomDelay() {
+	switch (Lib.random(6)) {
+	case 0:
+	    return 1 + Lib.random(3);
+	case 1:
+	    return 1 + Lib.random(300);
+	case 2:
+	    return 1 + Lib.random(70000);
+	case 3:
+	    return 1 + Lib.random(20000000);
+	case 4:
+	    return 1 + (long) (Lib.random() * (1L << 37));
+	default:
+	    return Stats.TimerTicks;
+	}
+    }
+
+    /**
+     * Measure how the pending interrupt queues cope with many devices. Runs
+     * <tt>Interrupt.devices</tt> devices, each of which reschedules its
+     * interrupt every few hundred or thousand ticks, through 2,000,000 ticks
+     * on a clock of its own, once with a tree and once with a timing wheel,
+     * and prints the wall-clock time each took.
+     */
+    public static void deviceTest() {
+	Interrupt interrupt = Machine.interrupt();
+	int devices = Config.getInteger("Interrupt.devices", 3000);
+	int ticks = 2000000;
+
+	long treeTime = runDevices(interrupt.new SortedQueue(), devices, ticks);
+	long wheelTime = runDevices(interrupt.new TimingWheel(), devices,
+				    ticks);
+
+	System.out.println("Interrupt: " + devices + " devices through "
+			   + ticks + " ticks in " + treeTime + " ms with a tree, "
+			   + wheelTime + " ms with a timing wheel");
+    }
+
+    private static long runDevices(final PendingQueue queue, int devices,
+				   int ticks) {
+	Interrupt interrupt = Machine.interrupt();
+	final int[] periods = { 100, 500, 2000 };
+	final long[] clock = new long[2];
+
+	for (int i=0; i<devices; i++) {
+	    final long period = periods[i%periods.length] + Lib.random(50);
+	    final PendingInterrupt[] toOccur = new PendingInterrupt[1];
+
+	    toOccur[0] = interrupt.new PendingInterrupt("device",
+							new Runnable() {
+		    public void run() {
+			toOccur[0].time = clock[0] + period;
+			toOccur[0].id = clock[1]++;
+			queue.add(toOccur[0]);
+		    }
+		});
+	    toOccur[0].handler.run();
+	}
+
+	long start = System.currentTimeMillis();
+
+	for (int i=0; i<ticks; i++) {
+	    clock[0]++;
+	    while (queue.first().time <= clock[0]) {
+		PendingInterrupt next = queue.first();
+		queue.removeFirst();
+		next.handler.run();
+	    }
+	}
+
+	return System.currentTimeMillis() - start;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +739,32 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingQueue pending;
+    private ConcurrentLinkedQueue<Runnable> posted =
+	new ConcurrentLinkedQueue<Runnable>();
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public Privilege.InterruptHandle schedule(long when, String type,
+						  Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public void post(Runnable action) {
+	    posted.add(action);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int ticks) {
+	    Interrupt.this.tick(inKernelMode, ticks);
+	}
+
+	public int ticksUntilDue(boolean inKernelMode) {
+	    return Interrupt.this.ticksUntilDue(inKernelMode);
+	}
     }
 }
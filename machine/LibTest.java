@@ -0,0 +1,93 @@
+package nachos.machine;
+
+/**
+ * Tests the little-endian byte string conversions in <tt>Lib</tt> against
+ * byte-at-a-time conversion, and times the two.
+ */
+public final class LibTest {
+    /**
+     * Allocate a new <tt>LibTest</tt> object.
+     */
+    public LibTest() {
+    }
+
+    /**
+     * Check the conversions at every alignment, then time both ways of
+     * reading and writing every word of 64 pages of memory,
+     * <tt>Lib.conversionPasses</tt> times, and print the wall-clock time each
+     * took.
+     */
+    public void run() {
+	byte[] array = new byte[16];
+	for (int i=0; i<10000; i++) {
+	    int offset = Lib.random(array.length-3);
+	    int value = (Lib.random(0x10000) << 16) | Lib.random(0x10000);
+
+	    Lib.bytesFromInt(array, offset, value);
+	    Lib.assertTrue(bytesToInt(array, offset) == value);
+	    Lib.bytesFromShort(array, offset, (short) value);
+	    Lib.assertTrue(Lib.bytesToShort(array, offset) ==
+			   (short) bytesToInt(array, offset));
+
+	    bytesFromInt(array, offset, value);
+	    Lib.assertTrue(Lib.bytesToInt(array, offset) == value);
+	}
+
+	int passes = Config.getInteger("Lib.conversionPasses", 1000);
+	byte[] memory = new byte[Processor.pageSize*64];
+
+	// the first round only warms up both loops
+	long libTime = 0, byteTime = 0;
+	for (int round=0; round<2; round++) {
+	    libTime = time(memory, passes, true);
+	    byteTime = time(memory, passes, false);
+	}
+
+	// every word was added to and taken from as often
+	for (int offset=0; offset<memory.length; offset+=4)
+	    Lib.assertTrue(Lib.bytesToInt(memory, offset) == 0);
+
+	System.out.println("Lib: " + (long) passes*memory.length/2
+			   + " int conversions in " + libTime
+			   + " ms with Lib, " + byteTime
+			   + " ms a byte at a time");
+    }
+
+    /**
+     * Read and write every word of the specified memory, adding its offset
+     * with <tt>Lib</tt> or taking it away a byte at a time, and return the
+     * time this took.
+     */
+    private long time(byte[] memory, int passes, boolean lib) {
+	long start = System.currentTimeMillis();
+
+	for (int pass=0; pass<passes; pass++) {
+	    for (int offset=0; offset<memory.length; offset+=4) {
+		if (lib) {
+		    int word = Lib.bytesToInt(memory, offset);
+		    Lib.bytesFromInt(memory, offset, word+offset);
+		}
+		else {
+		    int word = bytesToInt(memory, offset);
+		    bytesFromInt(memory, offset, word-offset);
+		}
+	    }
+	}
+
+	return System.currentTimeMillis() - start;
+    }
+
+    private static int bytesToInt(byte[] array, int offset) {
+	return (((int) array[offset+0] & 0xFF) << 0)  |
+	       (((int) array[offset+1] & 0xFF) << 8)  |
+	       (((int) array[offset+2] & 0xFF) << 16) |
+	       (((int) array[offset+3] & 0xFF) << 24);
+    }
+
+    private static void bytesFromInt(byte[] array, int offset, int value) {
+	array[offset+0] = (byte) ((value >> 0)  & 0xFF);
+	array[offset+1] = (byte) ((value >> 8)  & 0xFF);
+	array[offset+2] = (byte) ((value >> 16) & 0xFF);
+	array[offset+3] = (byte) ((value >> 24) & 0xFF);
+    }
+}
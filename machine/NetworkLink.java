@@ -113,8 +113,14 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	armReceiveInterrupt = new Runnable() {
+		public void run() { armReceiveInterrupt(); }
+	    };
+
+	hostThread = Config.getBoolean("NetworkLink.hostThread", false);
+	if (!hostThread)
+	    scheduleReceiveInterrupt();
 
 	Thread receiveThread = new Thread(new Runnable() {
 		public void run() { receiveLoop(); }
@@ -156,8 +162,26 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				     receiveInterrupt);
+	if (receiveHandle == null)
+	    receiveHandle =
+		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
+					     receiveInterrupt);
+	else
+	    receiveHandle.reschedule(Stats.NetworkTime);
+    }
+
+    /**
+     * Schedule the receive interrupt if the receive thread is holding a
+     * packet that can be delivered. If <tt>NetworkLink.hostThread</tt> is
+     * set, the receive thread posts this when a packet arrives, so the link
+     * does not need to poll for packets, but the tick at which a packet is
+     * delivered then depends on host timing. Otherwise the link polls every
+     * <tt>Stats.NetworkTime</tt> ticks.
+     */
+    private synchronized void armReceiveInterrupt() {
+	if (incomingBytes != null && incomingPacket == null &&
+	    (receiveHandle == null || !receiveHandle.isPending()))
+	    scheduleReceiveInterrupt();
     }
 
     private synchronized void receiveInterrupt() {
@@ -177,12 +201,14 @@ public class NetworkLink {
 	    incomingBytes = null;
 	    notify();
 
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
+	    if (incomingPacket == null) {
+		if (!hostThread)
+		    scheduleReceiveInterrupt();
+	    }
 	    else if (receiveInterruptHandler != null)
 		receiveInterruptHandler.run();
 	}
-	else {
+	else if (!hostThread) {
 	    scheduleReceiveInterrupt();
 	}
     }
@@ -198,7 +224,10 @@ public class NetworkLink {
 	
 	if (incomingPacket != null) {
 	    incomingPacket = null;
-	    scheduleReceiveInterrupt();
+	    if (hostThread)
+		armReceiveInterrupt();
+	    else
+		scheduleReceiveInterrupt();
 	}
 
 	return p;
@@ -236,6 +265,9 @@ public class NetworkLink {
 	    synchronized(this) {
 		incomingBytes = packetBytes;
 	    }
+
+	    if (hostThread)
+		privilege.interrupt.post(armReceiveInterrupt);
 	}
     }		
     
@@ -311,6 +343,9 @@ public class NetworkLink {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Runnable armReceiveInterrupt;
+
+    private Privilege.InterruptHandle receiveHandle = null;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -326,4 +361,7 @@ public class NetworkLink {
     private Packet outgoingPacket = null;
 
     private boolean sendBusy = false;
+
+    /** Whether the receive thread arms the receive interrupt itself. */
+    private boolean hostThread;
 }
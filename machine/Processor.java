@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +25,11 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ *
+ * <p>
+ * If <tt>Processor.batchTicks</tt> is set, user ticks are handed to
+ * <tt>Interrupt</tt> in batches that end just as the next interrupt becomes
+ * due, rather than one at a time.
  */
 public final class Processor {
     /**
@@ -45,9 +57,38 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    mainMemory = null;
+	    memoryBuffer =
+		allocateOffHeap(Config.getString("Processor.memoryFile"));
+	}
+	else {
+	    mainMemory = new byte[pageSize * numPhysPages];
+	    memoryBuffer = ByteBuffer.wrap(mainMemory);
+	}
+	memoryBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+	decodeCache = new Decoded[numPhysPages][];
+
+	batchingTicks = Config.getBoolean("Processor.batchTicks", false);
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbAssociativity =
+		    Config.getInteger("Processor.tlbAssociativity", tlbSize);
+
+		Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			       tlbSize % tlbAssociativity == 0,
+			       "TLB size must be a multiple of its associativity");
+
+		privilege.stats.tlbSetHits = new long[getTLBSets()];
+		privilege.stats.tlbSetMisses = new long[getTLBSets()];
+	    }
+	    else {
+		tlbAssociativity = tlbSize;
+	    }
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -57,6 +98,51 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Allocate physical memory outside the Java heap. If a file name is
+     * given, memory is a shared mapping of that file, which is created or
+     * resized as needed; otherwise it is anonymous.
+     *
+     * @param	fileName	the file to map, or <tt>null</tt>.
+     * @return	a buffer holding all of physical memory.
+     */
+    private ByteBuffer allocateOffHeap(final String fileName) {
+	final int size = pageSize * numPhysPages;
+	
+	if (fileName == null)
+	    return ByteBuffer.allocateDirect(size);
+
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+	final IOException[] error = new IOException[1];
+	
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile file =
+			    new RandomAccessFile(new File(fileName), "rw");
+			try {
+			    file.setLength(size);
+			    mapped[0] = file.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		    catch (IOException e) {
+			error[0] = e;
+		    }
+		}
+	    });
+
+	// the file was asked for by name, so do not quietly use other memory
+	Lib.assertTrue(mapped[0] != null,
+		       "could not map physical memory to " + fileName + ": " +
+		       error[0]);
+
+	return mapped[0];
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -98,10 +184,51 @@ public final class Processor {
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the time the exception happened at
+		flushTicks();
 		e.handle();
+		tickBudget = 0;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the simulated time by one user tick. When batching, the tick is
+     * only counted here until the next pending interrupt is due, and then all
+     * the counted ticks are handed to <tt>Interrupt</tt> at once, so every
+     * interrupt still happens at the same tick.
+     */
+    private void tick() {
+	if (tickBudget > 1) {
+	    tickBudget--;
+	    deferredTicks++;
+	    return;
+	}
+
+	// an interrupt handler may switch to another user thread, so leave
+	// nothing behind for it to find
+	int ticks = deferredTicks + 1;
+	deferredTicks = 0;
+	tickBudget = 0;
+
+	privilege.interrupt.tick(false, ticks);
+
+	if (batchingTicks)
+	    tickBudget = privilege.interrupt.ticksUntilDue(false);
+    }
+
+    /**
+     * Hand any ticks counted by <tt>tick()</tt> over to <tt>Interrupt</tt>.
+     * None of them can make an interrupt due.
+     */
+    private void flushTicks() {
+	if (deferredTicks > 0) {
+	    int ticks = deferredTicks;
+	    deferredTicks = 0;
+
+	    privilege.interrupt.tick(false, ticks);
 	}
     }
 
@@ -175,6 +302,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -188,6 +316,45 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is the same as the TLB size.
+     *
+     * @return	the number of entries in each TLB set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the number of sets in this processor's TLB.
+     *
+     * @return	the number of TLB sets.
+     */
+    public int getTLBSets() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSize / tlbAssociativity;
+    }
+
+    /**
+     * Return the TLB set that translations for the specified virtual page
+     * must be stored in. Set <i>s</i> consists of TLB entries
+     * <tt><i>s</i>*getTLBAssociativity()</tt> through
+     * <tt>(<i>s</i>+1)*getTLBAssociativity()-1</tt>, and only those entries
+     * are searched when translating an address in the page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set the page maps to.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return Math.floorMod(vpn ^ (vpn >>> 8), tlbSize / tlbAssociativity);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +372,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Unless <tt>Processor.variableTLB</tt> configures a set-associative TLB,
+     * the TLB is fully associative, so the location of an entry within the TLB
+     * does not affect anything. Otherwise a valid entry must be placed in the
+     * set returned by <tt>getTLBSet()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,6 +383,12 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       getTLBSet(entry.vpn) == number / tlbAssociativity);
+
+	// an earlier TLB entry for the same page must now win the search again
+	uncacheTranslation(translations[number].vpn);
+	uncacheTranslation(entry.vpn);
 
 	translations[number] = new TranslationEntry(entry);
     }
@@ -232,12 +407,77 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Instructions written through this array are picked up by the
+     * predecoded instruction cache, which checks every cached instruction
+     * against the word in memory before using it.
+     *
+     * <p>
+     * There is no such array if <tt>Processor.offHeapMemory</tt> is set; use
+     * <tt>getMemoryBuffer()</tt>, which works either way.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is off-heap; use getMemoryBuffer()");
+	
 	return mainMemory;
     }
 
+    /**
+     * Return a little-endian buffer view of physical memory. The buffer's
+     * capacity is <tt>pageSize * getNumPhysPages()</tt>, and its position and
+     * limit are independent of any other view. Like the array returned by
+     * <tt>getMemory()</tt>, writes through the view are seen by the
+     * processor immediately.
+     *
+     * @return	a buffer sharing the contents of physical memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memoryBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page. Called whenever the contents of the page are replaced.
+     *
+     * @param	ppn	the physical page whose contents changed.
+     */
+    void invalidateDecodeCache(int ppn) {
+	decodeCache[ppn] = null;
+    }
+
+    /**
+     * Return the predecoded form of the instruction at the specified physical
+     * address, decoding it and caching the result if necessary. A cached
+     * instruction is only used if the word it was decoded from is still in
+     * memory, so writes that bypass <tt>writeMem()</tt> cannot leave a stale
+     * instruction behind.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return	the predecoded instruction.
+     */
+    private Decoded getDecoded(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+	int value = readWord(paddr);
+
+	Decoded[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize / 4];
+	    decodeCache[ppn] = page;
+	}
+
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -297,6 +537,27 @@ public final class Processor {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
+	else if ((vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    int slot = vpn & (translationCacheSize-1);
+	    TranslationEntry entry = cachedEntries[slot];
+
+	    // a page table entry can be changed by the kernel at any time, so
+	    // make sure it is still the one in use and still maps the same page
+	    if (entry != null && cachedVPNs[slot] == vpn && entry.valid &&
+		entry.ppn*pageSize == cachedBases[slot] &&
+		!(writing && entry.readOnly) &&
+		(usingTLB || translations[vpn] == entry)) {
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		if (usingTLB && privilege.stats.tlbSetHits != null)
+		    privilege.stats.tlbSetHits[getTLBSet(vpn)]++;
+
+		return cachedBases[slot] + offsetFromAddress(vaddr);
+	    }
+	}
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
@@ -322,14 +583,25 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in vpn's set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    int set = getTLBSet(vpn);
+	    int first = set * tlbAssociativity;
+	    
+	    for (int i=first; i<first+tlbAssociativity; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
 		    break;
 		}
 	    }
+
+	    if (privilege.stats.tlbSetHits != null) {
+		if (entry != null)
+		    privilege.stats.tlbSetHits[set]++;
+		else
+		    privilege.stats.tlbSetMisses[set]++;
+	    }
+	    
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -357,11 +629,33 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	int slot = vpn & (translationCacheSize-1);
+	cachedVPNs[slot] = vpn;
+	cachedEntries[slot] = entry;
+	cachedBases[slot] = ppn*pageSize;
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Forget every cached translation.
+     */
+    private void flushTranslationCache() {
+	for (int i=0; i<translationCacheSize; i++)
+	    cachedEntries[i] = null;
+    }
+
+    /**
+     * Forget any cached translation for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void uncacheTranslation(int vpn) {
+	cachedEntries[vpn & (translationCacheSize-1)] = null;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -378,8 +672,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhysical(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +698,76 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+
+	// stores into a page we have executed from invalidate its instructions
+	int ppn = paddr / pageSize;
+	if (decodeCache[ppn] != null)
+	    decodeCache[ppn] = null;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	writePhysical(paddr, size, value);
+    }
+
+    /**
+     * Read an aligned word of physical memory.
+     *
+     * @param	paddr	the physical address to read from.
+     * @return	the word read.
+     */
+    private int readWord(int paddr) {
+	if (mainMemory != null)
+	    return Lib.bytesToInt(mainMemory, paddr);
+	else
+	    return memoryBuffer.getInt(paddr);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory, sign-extending
+     * the value read, as <tt>Lib.bytesToInt()</tt> does.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return	the value read.
+     */
+    private int readPhysical(int paddr, int size) {
+	if (mainMemory != null)
+	    return Lib.bytesToInt(mainMemory, paddr, size);
+
+	switch (size) {
+	case 1:
+	    return memoryBuffer.get(paddr);
+	case 2:
+	    return memoryBuffer.getShort(paddr);
+	default:
+	    return memoryBuffer.getInt(paddr);
+	}
+    }
+
+    /**
+     * Write <i>size</i> (1, 2, or 4) bytes of physical memory.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void writePhysical(int paddr, int size, int value) {
+	if (mainMemory != null) {
+	    Lib.bytesFromInt(mainMemory, paddr, size, value);
+	    return;
+	}
+
+	switch (size) {
+	case 1:
+	    memoryBuffer.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memoryBuffer.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memoryBuffer.putInt(paddr, value);
+	    break;
+	}
     }
 
     /**
@@ -541,12 +901,26 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /** Number of slots in the translation cache. Must be a power of 2. */
+    private static final int translationCacheSize = 64;
+    /**
+     * A direct-mapped cache of recent successful translations, indexed by the
+     * low bits of the virtual page number. Each slot holds the virtual page,
+     * the entry that mapped it, and the physical address of the page.
+     */
+    private int[] cachedVPNs = new int[translationCacheSize];
+    private TranslationEntry[] cachedEntries =
+	new TranslationEntry[translationCacheSize];
+    private int[] cachedBases = new int[translationCacheSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +929,24 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * A buffer holding main memory: either a view of <tt>mainMemory</tt>, or
+     * off-heap memory, in which case <tt>mainMemory</tt> is <tt>null</tt>.
+     */
+    private ByteBuffer memoryBuffer;
+    /**
+     * Predecoded instructions, indexed by physical page and then by word
+     * within the page. A page's array is allocated the first time an
+     * instruction is fetched from it, and dropped when the page is written.
+     */
+    private Decoded[][] decodeCache;
+
+    /** <tt>true</tt> if user ticks should be batched. */
+    private boolean batchingTicks;
+    /** Number of ticks that can still pass before an interrupt is due. */
+    private int tickBudget = 0;
+    /** User ticks counted but not yet given to <tt>Interrupt</tt>. */
+    private int deferredTicks = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -616,6 +1008,13 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(Decoded decoded) throws MipsException {
+	    this.decoded = decoded;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,63 +1025,38 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    // readMem() traces the fetch; only bypass it when nobody's looking
+	    if (Lib.test(dbgProcessor))
+		decoded = new Decoded(readMem(registers[regPC], 4));
+	    else
+		decoded = getDecoded(translate(registers[regPC], 4, false));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1067,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1421,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1433,73 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = Lib.extract(value, 0, 16);
+	    else
+		imm = Lib.extend(value, 0, 16);
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
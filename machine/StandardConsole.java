@@ -7,7 +7,12 @@ import nachos.security.*;
 import java.io.IOException;
 
 /**
- * A text-based console that uses System.in and System.out.
+ * A text-based console that uses System.in and System.out. By default the
+ * console polls System.in every <tt>Stats.ConsoleTime</tt> ticks. If
+ * <tt>StandardConsole.hostThread</tt> is set, a host thread reads System.in
+ * instead and schedules the receive interrupt when a byte arrives, so the
+ * console does not poll, but the tick at which input is delivered then
+ * depends on host timing.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -28,8 +33,23 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	hostThread = Config.getBoolean("StandardConsole.hostThread", false);
+	if (!hostThread) {
+	    scheduleReceiveInterrupt();
+	    return;
+	}
+
+	armReceiveInterrupt = new Runnable() {
+		public void run() { armReceiveInterrupt(); }
+	    };
+
+	Thread readThread = new Thread(new Runnable() {
+		public void run() { readLoop(); }
+	    });
+
+	readThread.setDaemon(true);
+	readThread.start();
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -39,8 +59,18 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	if (receiveHandle == null)
+	    receiveHandle =
+		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+					     receiveInterrupt);
+	else
+	    receiveHandle.reschedule(Stats.ConsoleTime);
+    }
+
+    private synchronized void armReceiveInterrupt() {
+	if (hostKey != -1 && incomingKey == -1 &&
+	    (receiveHandle == null || !receiveHandle.isPending()))
+	    scheduleReceiveInterrupt();
     }
 
     /**
@@ -48,15 +78,56 @@ public class StandardConsole implements SerialConsole {
      *
      * @return	the byte read, or -1 of no data is available.
      */
-    protected int in() {
-	try {
-	    if (System.in.available() <= 0)
+    protected synchronized int in() {
+	if (!hostThread) {
+	    try {
+		if (System.in.available() <= 0)
+		    return -1;
+
+		return System.in.read();
+	    }
+	    catch (IOException e) {
 		return -1;
-
-	    return System.in.read();
+	    }
 	}
-	catch (IOException e) {
-	    return -1;
+
+	int c = hostKey;
+
+	hostKey = -1;
+	notify();
+
+	return c;
+    }
+
+    private void readLoop() {
+	while (true) {
+	    synchronized(this) {
+		while (hostKey != -1) {
+		    try {
+			wait();
+		    }
+		    catch (InterruptedException e) {
+		    }
+		}
+	    }
+
+	    int c;
+
+	    try {
+		c = System.in.read();
+	    }
+	    catch (IOException e) {
+		return;
+	    }
+
+	    if (c == -1)
+		return;
+
+	    synchronized(this) {
+		hostKey = c;
+	    }
+
+	    privilege.interrupt.post(armReceiveInterrupt);
 	}
     }
 
@@ -91,7 +162,8 @@ public class StandardConsole implements SerialConsole {
 
 	incomingKey = translateCharacter(in());
 	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
+	    if (!hostThread)
+		scheduleReceiveInterrupt();
 	}
 	else {
 	    privilege.stats.numConsoleReads++;
@@ -106,7 +178,10 @@ public class StandardConsole implements SerialConsole {
 
 	if (incomingKey != -1) {
 	    incomingKey = -1;
-	    scheduleReceiveInterrupt();
+	    if (hostThread)
+		armReceiveInterrupt();
+	    else
+		scheduleReceiveInterrupt();
 	}
 
 	return key;
@@ -150,6 +225,9 @@ public class StandardConsole implements SerialConsole {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Runnable armReceiveInterrupt;
+
+    private Privilege.InterruptHandle receiveHandle = null;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -157,5 +235,11 @@ public class StandardConsole implements SerialConsole {
     private int incomingKey = -1;
     private int outgoingKey = -1;
 
+    /** The last byte read by the host thread, or -1 if it has been taken. */
+    private int hostKey = -1;
+
     private boolean prevCarriageReturn = false;
+
+    /** Whether a host thread reads System.in instead of polling. */
+    private boolean hostThread;
 }
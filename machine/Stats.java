@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.Vector;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -29,6 +31,30 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	if (numTCBPoolHits + numTCBPoolMisses > 0)
+	    System.out.println("TCB pool: hits " + numTCBPoolHits
+			       + ", misses " + numTCBPoolMisses);
+	if (tlbSetHits != null) {
+	    for (int i=0; i<tlbSetHits.length; i++)
+		System.out.println("TLB set " + i + ": hits " + tlbSetHits[i]
+				   + ", misses " + tlbSetMisses[i]);
+	}
+
+	for (int i=0; i<printHandlers.size(); i++)
+	    printHandlers.elementAt(i).run();
+    }
+
+    /**
+     * Add a handler to be called after the statistics in this object are
+     * printed. This lets the kernel print statistics of its own, such as
+     * those kept by a scheduler, when Nachos halts. Handlers are called in
+     * the order they were added.
+     *
+     * @param	handler	the handler that prints the statistics.
+     */
+    public static void addPrintHandler(Runnable handler) {
+	printHandlers.add(handler);
     }
 
     /**
@@ -57,10 +83,26 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of translations found in each TLB set, or <tt>null</tt> if
+     * the TLB size and associativity are not configurable.
+     */
+    public long[] tlbSetHits = null;
+    /**
+     * The number of translations not found in each TLB set, or <tt>null</tt>
+     * if the TLB size and associativity are not configurable.
+     */
+    public long[] tlbSetMisses = null;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The number of TCBs started in a Java thread taken from the pool. */
+    public int numTCBPoolHits = 0;
+    /** The number of TCBs started when the TCB thread pool was empty. */
+    public int numTCBPoolMisses = 0;
+
+    private static Vector<Runnable> printHandlers = new Vector<Runnable>();
 
     /**
      * The amount to advance simulated time after each user instructions is
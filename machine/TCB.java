@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,22 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB runs at a time, the one named by the volatile
+ * <tt>owner</tt> field. A TCB hands control to another by making it the
+ * owner and unparking its thread, and then parks its own thread until it
+ * becomes the owner again. If <tt>TCB.virtualThreads</tt> is set, each TCB
+ * other than the first runs in a virtual thread, when the JVM supports them.
+ * The number of TCBs that can exist at once is set by the
+ * <tt>TCB.maxThreads</tt> key, and is <tt>maxThreads</tt> by default.
+ *
+ * <p>
+ * If <tt>TCB.poolMaxIdle</tt> is positive, the Java thread of a destroyed
+ * TCB is kept in a pool and reused by the next TCB to start, rather than
+ * exiting. At most that many threads wait in the pool, and whenever a TCB
+ * takes one, new threads are created so that at least
+ * <tt>TCB.poolMinIdle</tt> are left waiting.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +58,48 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+
+	poolMaxIdle = Config.getInteger("TCB.poolMaxIdle", 0);
+	poolMinIdle = Config.getInteger("TCB.poolMinIdle", 0);
+	Lib.assertTrue(poolMinIdle >= 0 && poolMinIdle <= poolMaxIdle);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt>, which only exists in JVMs that
+     * support virtual threads. If it is missing, TCBs run in platform
+     * threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    Class<?> builderClass = Lib.loadClass("java.lang.Thread$Builder");
+
+	    virtualThreadBuilder = ofVirtual.invoke(null);
+	    unstartedThread = builderClass.getMethod("unstarted",
+						     Runnable.class);
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgTCB, "virtual threads not supported, using platform "
+		      + "threads");
+	    virtualThreadBuilder = null;
+	    unstartedThread = null;
+	}
+    }
+
+    /**
+     * Return the maximum number of started, non-destroyed TCBs that can be
+     * in existence.
+     *
+     * @return	the maximum number of TCBs.
+     */
+    public static int getMaxThreads() {
+	return threadLimit;
     }
     
     /**
@@ -66,7 +126,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,7 +145,37 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && poolMaxIdle > 0) {
+	    /* If this is not the first TCB and threads are pooled, we take an
+	     * idle Java thread from the pool, first making new ones if it would
+	     * be left with fewer than poolMinIdle.
+	     * The thread is parked waiting for a TCB, so we hand it this one
+	     * and wait for it to wake us up from threadroot(), just as a new
+	     * thread would.
+	     */
+	    if (idleHosts.isEmpty())
+		privilege.stats.numTCBPoolMisses++;
+	    else
+		privilege.stats.numTCBPoolHits++;
+
+	    if (idleHosts.size() <= poolMinIdle) {
+		privilege.doPrivileged(new Runnable() {
+			public void run() { fillPool(); }
+		    });
+	    }
+
+	    HostThread host = idleHosts.remove(idleHosts.size()-1);
+	    
+	    this.host = host;
+	    javaThread = host.thread;
+	    
+	    owner = this;
+
+	    host.next = this;
+	    LockSupport.unpark(javaThread);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
@@ -94,16 +184,16 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
+	     * blocking in yield(). We do this by temporarily making the new
+	     * TCB the owner, starting the new Java thread, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
+	    owner = this;
 	    
 	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
@@ -149,14 +239,13 @@ public final class TCB {
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must latch the value of currentTCB. Only the owner's
+	 * thread changes the owner, so if we get interrupted before we call
+	 * yield(), the interrupt will make us the owner again and yield()
+	 * won't block.
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
 	
 	this.interrupt();
 	previous.yield();
@@ -181,7 +270,6 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -207,16 +295,71 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    private static Thread newThread(Runnable target) {
+	if (unstartedThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) unstartedThread.invoke(virtualThreadBuilder,
+						   target);
+	}
+	catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /**
+     * Start enough idle Java threads that one can be taken from the pool and
+     * still leave <tt>poolMinIdle</tt>.
+     */
+    private static void fillPool() {
+	while (idleHosts.size() <= poolMinIdle) {
+	    HostThread host = new HostThread();
+	    host.thread = newThread(host);
+	    host.thread.start();
+
+	    idleHosts.add(host);
+	}
+    }
+
+    /**
+     * A pooled Java thread. It runs one TCB at a time, and between TCBs it
+     * parks until <tt>start()</tt> hands it another.
+     */
+    private static class HostThread implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+
+		next = null;
+		pooled = false;
+		
+		tcb.threadroot();
+
+		if (!pooled)
+		    return;
+	    }
+	}
+
+	private Thread thread;
+	/** The TCB to run next, set by <tt>start()</tt>. */
+	private volatile TCB next = null;
+	/** Set when the current TCB is destroyed and this returns to the pool. */
+	private boolean pooled;
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	     * to context switch to us. If a context switch happens before we
+	     * park, it makes us the owner, so we'll still run. All we have to
+	     * do is wake up the current TCB and then wait to get woken up by
+	     * contextSwitch() or destroy().
 	     */
 	    
 	    currentTCB.interrupt();
@@ -228,7 +371,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    owner = this;
 	}
 
 	try {
@@ -272,37 +415,45 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Return our Java thread to the pool before waking up destroy(),
+	     * while we still own the pool. The thread is reused once it has
+	     * unwound out of threadroot().
+	     */
+	    if (host != null && idleHosts.size() < poolMaxIdle) {
+		host.pooled = true;
+		idleHosts.add(host);
+	    }
+	    
 	    currentTCB.interrupt();
-	    throw new ThreadDeath();
+	    throw threadDeath;
 	}
 
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Parks the Java thread bound to this TCB until this TCB becomes the
+     * owner. <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go
+     * to wait for its turn to run. This includes the ping-pong process of
+     * starting and destroying TCBs, as well as in context switching from
+     * this TCB to another. We don't rely on <tt>currentTCB</tt>, since it is
+     * updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (owner != this)
+	    LockSupport.park(this);
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * Wake up this TCB by making it the owner and unparking the Java thread
+     * bound to it. Used in the ping-pong process of starting and destroying
+     * TCBs, as well as in context switching to this TCB. Only the owner's
+     * thread may call this, so the owner never changes behind a TCB's back
+     * once it has been woken.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	owner = this;
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +479,32 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> sets another limit.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, as configured.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The TCB whose Java thread ought to be running. This is usually
+     * <tt>currentTCB</tt>, but when starting or destroying a TCB, it is
+     * temporarily a TCB other than the current TCB. It is also changed by
+     * <tt>contextSwitch()</tt> before <tt>currentTCB</tt>, which is only
+     * updated once the new owner's thread wakes up.
+     */
+    private static volatile TCB owner = null;
+
+    /**
+     * The <tt>Thread.Builder</tt> that creates virtual threads, and its
+     * <tt>unstarted()</tt> method, or <tt>null</tt> to use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedThread = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +527,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -364,6 +537,21 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * Thrown to unwind the Java thread of a destroyed TCB. It is only ever
+     * caught by <tt>threadroot()</tt>, so one instance will do.
+     */
+    private static final ThreadDeath threadDeath = new ThreadDeath();
+
+    /**
+     * Idle pooled Java threads, used as a stack. Only the thread of the
+     * owner TCB touches it.
+     */
+    private static Vector<HostThread> idleHosts = new Vector<HostThread>();
+    private static int poolMinIdle = 0, poolMaxIdle = 0;
+
+    private static final char dbgTCB = 'T';
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -379,17 +567,6 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
-    /**
-     * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
-     * when the associated Java thread ought to run ASAP. When starting or
-     * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
-     */
-    private boolean running = false;
-
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
      * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
@@ -401,6 +578,8 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    /** The pooled Java thread running this TCB, if any. */
+    private HostThread host = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -59,6 +59,16 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Get the amount of time spent running user programs.
+     *
+     * @return	the number of clock ticks since Nachos started that were spent
+     *		executing user instructions.
+     */
+    public long getUserTime() {
+	return privilege.stats.userTicks;
+    }
+
     private void timerInterrupt() {
 	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
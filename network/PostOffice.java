@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -17,7 +19,7 @@ import nachos.threads.*;
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using a list of <tt>SynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
@@ -26,9 +28,9 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
-	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	queues = new ArrayList<SynchList<MailMessage>>(MailMessage.portLimit);
+	for (int i=0; i<MailMessage.portLimit; i++)
+	    queues.add(new SynchList<MailMessage>());
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -54,11 +56,11 @@ public class PostOffice {
      * @return	the message received.
      */
     public MailMessage receive(int port) {
-	Lib.assertTrue(port >= 0 && port < queues.length);
+	Lib.assertTrue(port >= 0 && port < queues.size());
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues.get(port).removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -89,7 +91,7 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    queues.get(mail.dstPort).add(mail);
 	}
     }
 
@@ -125,7 +127,7 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private ArrayList<SynchList<MailMessage>> queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
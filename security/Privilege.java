@@ -147,8 +147,23 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be used to cancel or reschedule the
+	 *		interrupt.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public InterruptHandle schedule(long when, String type,
+					Runnable handler);
+
+	/**
+	 * Run an action on behalf of a host thread. The action runs at the
+	 * next tick of simulated time, with interrupts disabled, before any
+	 * interrupt handlers are called. Unlike every other method of this
+	 * interface, this method may be called from any Java thread, so a
+	 * device's host thread can use it to schedule an interrupt when data
+	 * arrives.
+	 *
+	 * @param	action	the action to run.
+	 */
+	public void post(Runnable action);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +173,63 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. Any interrupts
+	 * that become due are handled once all the ticks have been added, so
+	 * this has the same effect as calling <tt>tick()</tt> <i>ticks</i>
+	 * times only if <i>ticks</i> is at most
+	 * <tt>ticksUntilDue(inKernelMode)</tt>.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param ticks	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int ticks);
+
+	/**
+	 * Return the number of ticks that can elapse before the next pending
+	 * interrupt becomes due, counting the tick that makes it due. Always
+	 * at least 1.
+	 *
+	 * @param inKernelMode	<tt>true</tt> to count kernel ticks,
+	 *		<tt>false</tt> to count user ticks.
+	 * @return	the number of ticks until an interrupt is due.
+	 */
+	public int ticksUntilDue(boolean inKernelMode);
+    }
+
+    /**
+     * A handle on an interrupt returned by
+     * <tt>InterruptPrivilege.schedule()</tt>. Its methods may only be called
+     * with interrupts disabled, like <tt>schedule()</tt> itself.
+     */
+    public interface InterruptHandle {
+	/**
+	 * Cancel the interrupt if it has not occurred yet.
+	 *
+	 * @return	<tt>true</tt> if the interrupt was pending.
+	 */
+	public boolean cancel();
+
+	/**
+	 * Schedule the interrupt to occur at a new time, replacing its old
+	 * time if it is still pending. The interrupt is ordered as if it had
+	 * just been scheduled, and can be rescheduled after it has occurred
+	 * or been cancelled.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void reschedule(long when);
+
+	/**
+	 * Tests whether the interrupt is still waiting to occur.
+	 *
+	 * @return	<tt>true</tt> if the interrupt is pending.
+	 */
+	public boolean isPending();
     }
 
     /**
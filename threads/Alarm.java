@@ -1,20 +1,27 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.TreeSet;
+
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept on a hashed timing wheel: a ring of slots, each
+ * covering <tt>Stats.TimerTicks</tt> ticks of simulated time, with a list of
+ * the threads due in that slot on this or a later turn of the wheel. Putting
+ * a thread to sleep or cancelling its sleep takes constant time, and each
+ * timer interrupt only looks at the slots that have come due since the last
+ * one. <tt>Alarm.wheelSize</tt> sets the number of slots, and must be a power
+ * of two.
  */
 public class Alarm {
- 
-	/**
-	 * Creating a priority queue to hold the waiting threads.
-	 */
-	java.util.PriorityQueue<waitingThread> waitQueue = new java.util.PriorityQueue<waitingThread>();
-	
-   /**
+    /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
      *
@@ -22,6 +29,14 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	int size = Config.getInteger("Alarm.wheelSize", 512);
+	Lib.assertTrue(size > 0 && (size & (size-1)) == 0);
+
+	wheel = new Sleeper[size];
+	mask = size-1;
+
+	preempt = Config.getBoolean("Alarm.preempt", true);
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -29,23 +44,23 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time has come, then causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run. If
+     * <tt>Alarm.preempt</tt> is <tt>false</tt>, the current thread only
+     * yields when some thread was woken.
      */
     public void timerInterrupt() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean woken = wakeSleepers();
 
-	boolean status = Machine.interrupt().disable();
-    	waitingThread newThread;
-    	
-    	while((newThread = waitQueue.peek()) != null
-    			&& newThread.getTime() <= Machine.timer().getTime()) {
-    		waitQueue.poll().getThread().ready();
-    		
-    	}
-    	
-    	Machine.interrupt().restore(status);
-    	KThread.yield();
+	ThreadedKernel.scheduler.timerInterrupt();
+
+	Machine.interrupt().restore(intStatus);
+
+	if (woken || preempt)
+	    KThread.yield();
     }
 
     /**
@@ -64,71 +79,214 @@ public class Alarm {
      */
     public void waitUntil(long x) {
 	long wakeTime = Machine.timer().getTime() + x;
-    	boolean status = Machine.interrupt().disable();
-    
-    	KThread thread = KThread.currentThread();
-    	waitingThread newThread = new waitingThread(thread, wakeTime);
-    	
-    	waitQueue.add(newThread);
-    	KThread.sleep();
-    	Machine.interrupt().restore(status);
-    	
+	boolean intStatus = Machine.interrupt().disable();
+
+	sleep(new Sleeper(KThread.currentThread(), wakeTime, null));
+
+	Machine.interrupt().restore(intStatus);
     }
 
-/**
-     * A private class that implements the Comparable interface.
+    /**
+     * Put the current thread to sleep until it is given access by the
+     * specified queue, or for at least <i>x</i> ticks. The current thread
+     * must already be waiting on the queue. If the time runs out first, the
+     * thread is removed from the queue. Must be called with interrupts
+     * disabled.
      *
+     * <p>
+     * A thread that gives the sleeping thread access, having taken it from
+     * the queue with <tt>nextThread()</tt>, must wake it with
+     * <tt>cancel()</tt>, which readies it if it is sleeping here.
+     *
+     * @param	queue	the queue the current thread is waiting on.
+     * @param	x	the maximum number of clock ticks to wait. If this is
+     *			not positive, the thread stops waiting at once.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if the time ran out.
      */
-    private class waitingThread implements Comparable<waitingThread> {
-    	public KThread thread;
-    	public long time;
-    	
-    	/**
-    	 * Constructor to create a waiting thread, consisting of the thread and its wake time.
-    	 * @param thread  the thread.
-    	 * @param time  wake time of the thread.
-    	 */
-    	public waitingThread(KThread thread, long time){
-    		this.thread = thread;
-    		this.time = time;
-    	}
-    	
-    	/**
-    	 * Returns the thread.
-    	 * @return  the thread.
-    	 */
-    	public KThread getThread() {
-    		return thread;
-    	}
-    	
-    	/**
-    	 * Returns the wake time of the thread.
-    	 * @return  the wake time of the thread.
-    	 */
-    	public long getTime() {
-    		return time;
-    	}
-    	
-    	/**
-    	 * Allows threads to be sorted according to their wake times. 
-    	 */
-    	public int compareTo(waitingThread newThread) {
-    		if(time > newThread.time) {
-    			return 1;
-    		}
-    		else if(time < newThread.time) {
-    			return -1;
-    		}
-    		else { 
-    			return thread.compareTo(newThread.thread);
-    		}
-    		
-    	}
+    boolean waitForAccess(ThreadQueue queue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+
+	if (x <= 0)
+	    return !queue.remove(thread);
+
+	Sleeper sleeper = new Sleeper(thread, Machine.timer().getTime() + x,
+				      queue);
+	sleep(sleeper);
+
+	return !sleeper.removed;
     }
-    
+
+    /**
+     * Wake the specified thread now, if it is sleeping in
+     * <tt>waitUntil()</tt> or <tt>waitForAccess()</tt>. Its call then
+     * returns early. A thread in <tt>waitForAccess()</tt> has been given
+     * access if it is no longer on its queue, and otherwise is removed from
+     * it. A thread in <tt>waitUntil()</tt> is released to the scheduler as
+     * of now, just as if its time had come.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was sleeping.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Sleeper sleeper = sleepers.remove(thread);
+	if (sleeper != null) {
+	    unlink(sleeper);
+
+	    if (sleeper.queue != null) {
+		sleeper.removed = sleeper.queue.remove(thread);
+	    }
+	    else {
+		ThreadedKernel.scheduler.releasingThread(thread,
+							 Machine.timer().getTime());
+	    }
+
+	    thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return (sleeper != null);
+    }
+
+    /**
+     * Put the current thread to sleep on the wheel until it is woken.
+     */
+    private void sleep(Sleeper sleeper) {
+	Lib.assertTrue(!sleepers.containsKey(sleeper.thread));
+
+	sleepers.put(sleeper.thread, sleeper);
+	insert(sleeper);
+
+	KThread.sleep();
+    }
+
+    /**
+     * Wake every sleeping thread whose time has come, in order of wake time
+     * and then thread ID.
+     *
+     * @return	<tt>true</tt> if any thread was woken.
+     */
+    private boolean wakeSleepers() {
+	long time = Machine.timer().getTime();
+	long lastSlot = time / Stats.TimerTicks;
+
+	if (sleepers.isEmpty()) {
+	    nextSlot = lastSlot;
+	    return false;
+	}
+
+	// no need to look at any slot more than once
+	long endSlot = Math.min(lastSlot+1, nextSlot+wheel.length);
+
+	for (long slot=nextSlot; slot<endSlot; slot++) {
+	    Sleeper sleeper = wheel[(int) slot & mask];
+	    while (sleeper != null) {
+		Sleeper next = sleeper.next;
+		if (sleeper.time <= time) {
+		    unlink(sleeper);
+		    expired.add(sleeper);
+		}
+		sleeper = next;
+	    }
+	}
+
+	// the current slot is looked at again, since it is not yet over
+	nextSlot = lastSlot;
+
+	if (expired.isEmpty())
+	    return false;
+
+	if (expired.size() > 1)
+	    Collections.sort(expired, wakeOrder);
+
+	for (int i=0; i<expired.size(); i++) {
+	    Sleeper sleeper = expired.get(i);
+	    sleepers.remove(sleeper.thread);
+
+	    if (sleeper.queue != null) {
+		sleeper.removed = sleeper.queue.remove(sleeper.thread);
+		Lib.assertTrue(sleeper.removed);
+	    }
+	    else {
+		ThreadedKernel.scheduler.releasingThread(sleeper.thread,
+							 sleeper.time);
+	    }
+
+	    sleeper.thread.ready();
+	}
+
+	expired.clear();
+	return true;
+    }
+
+    /**
+     * Add a sleeper to the slot for its wake time, or if that slot has
+     * already been passed, to the next slot to be looked at.
+     */
+    private void insert(Sleeper sleeper) {
+	long slot = Math.max(sleeper.time / Stats.TimerTicks, nextSlot);
+	int index = (int) slot & mask;
+
+	sleeper.index = index;
+	sleeper.prev = null;
+	sleeper.next = wheel[index];
+	if (sleeper.next != null)
+	    sleeper.next.prev = sleeper;
+	wheel[index] = sleeper;
+    }
+
+    private void unlink(Sleeper sleeper) {
+	if (sleeper.prev != null)
+	    sleeper.prev.next = sleeper.next;
+	else
+	    wheel[sleeper.index] = sleeper.next;
+
+	if (sleeper.next != null)
+	    sleeper.next.prev = sleeper.prev;
+
+	sleeper.prev = sleeper.next = null;
+    }
+
+    /**
+     * A thread sleeping in <tt>waitUntil()</tt> or
+     * <tt>waitForAccess()</tt>, linked into its slot of the wheel.
+     */
+    private static class Sleeper {
+	Sleeper(KThread thread, long time, ThreadQueue queue) {
+	    this.thread = thread;
+	    this.time = time;
+	    this.queue = queue;
+	}
+
+	KThread thread;
+	long time;
+	/** The queue the thread is waiting on, if its wait has a timeout. */
+	ThreadQueue queue;
+	/** Set if the thread was removed from its queue without access. */
+	boolean removed = false;
+	int index;
+	Sleeper prev, next;
+    }
+
+    private static final Comparator<Sleeper> wakeOrder =
+	new Comparator<Sleeper>() {
+	    public int compare(Sleeper a, Sleeper b) {
+		if (a.time < b.time)
+		    return -1;
+		else if (a.time > b.time)
+		    return 1;
+		else
+		    return a.thread.compareTo(b.thread);
+	    }
+	};
+
     public static void selfTest(){
     	System.out.println("\nTesting Alarm:");
-    	final Alarm alarm = new Alarm();
+    	final Alarm alarm = ThreadedKernel.alarm;
 		
 		Runnable A = new Runnable() {
 			public void run() {
@@ -185,6 +343,136 @@ public class Alarm {
 		Test2.join();
 		Test3.join();
 	}
-	
-	private TreeSet<waitingThread> set; 
+
+    /**
+     * Stress the timed waits of <tt>Semaphore</tt>, <tt>Lock</tt> and
+     * <tt>Condition2</tt>. For each in turn, forks as many threads as the
+     * machine allows, each waiting with a random timeout, while the main
+     * thread satisfies some of the waits. Checks that a wait that times out
+     * returns no sooner than its timeout, that one that succeeds really was
+     * given the semaphore, lock or wakeup, and that none are lost.
+     */
+    public static void timeoutTest() {
+	final int waiters = TCB.getMaxThreads() - 8;
+	final Alarm alarm = ThreadedKernel.alarm;
+	final int[] satisfied = new int[1], timedOut = new int[1];
+	int totalTimedOut = 0;
+	long start = System.currentTimeMillis();
+
+	// semaphore: every V() is taken by exactly one P(), now or later
+	final Semaphore semaphore = new Semaphore(0);
+	KThread[] threads = forkWaiters(waiters, new Runnable() {
+		public void run() {
+		    long timeout = Lib.random(20000) + 1;
+		    long time = Machine.timer().getTime();
+		    if (semaphore.P(timeout))
+			satisfied[0]++;
+		    else
+			timedOut[0] += checkTimedOut(time, timeout);
+		}
+	    });
+	int numV = waiters/3;
+	for (int i=0; i<numV; i++) {
+	    alarm.waitUntil(Lib.random(Math.max(40000/numV, 1)) + 1);
+	    semaphore.V();
+	}
+	joinAll(threads);
+	Lib.assertTrue(satisfied[0] + timedOut[0] == waiters);
+	while (semaphore.P(0))
+	    satisfied[0]++;
+	Lib.assertTrue(satisfied[0] == numV);
+
+	totalTimedOut += timedOut[0];
+	satisfied[0] = timedOut[0] = 0;
+
+	// lock: held by the main thread for a while, then passed around
+	final Lock lock = new Lock();
+	lock.acquire();
+	threads = forkWaiters(waiters, new Runnable() {
+		public void run() {
+		    long timeout = Lib.random(20000) + 1;
+		    long time = Machine.timer().getTime();
+		    if (lock.tryAcquire(timeout)) {
+			Lib.assertTrue(lock.isHeldByCurrentThread());
+			satisfied[0]++;
+			lock.release();
+		    }
+		    else {
+			Lib.assertTrue(!lock.isHeldByCurrentThread());
+			timedOut[0] += checkTimedOut(time, timeout);
+		    }
+		}
+	    });
+	alarm.waitUntil(10000);
+	lock.release();
+	joinAll(threads);
+	Lib.assertTrue(satisfied[0] + timedOut[0] == waiters);
+	Lib.assertTrue(lock.tryAcquire(0));
+	lock.release();
+
+	totalTimedOut += timedOut[0];
+	satisfied[0] = timedOut[0] = 0;
+
+	// condition variable: woken one at a time, then all at once
+	final Lock conditionLock = new Lock();
+	final Condition2 condition = new Condition2(conditionLock);
+	threads = forkWaiters(waiters, new Runnable() {
+		public void run() {
+		    long timeout = Lib.random(20000) + 1;
+		    long time = Machine.timer().getTime();
+		    conditionLock.acquire();
+		    if (condition.sleep(timeout))
+			satisfied[0]++;
+		    else
+			timedOut[0] += checkTimedOut(time, timeout);
+		    conditionLock.release();
+		}
+	    });
+	for (int i=0; i<numV; i++) {
+	    alarm.waitUntil(Lib.random(Math.max(40000/numV, 1)) + 1);
+	    conditionLock.acquire();
+	    condition.wake();
+	    conditionLock.release();
+	}
+	conditionLock.acquire();
+	condition.wakeAll();
+	conditionLock.release();
+	joinAll(threads);
+	Lib.assertTrue(satisfied[0] + timedOut[0] == waiters);
+
+	totalTimedOut += timedOut[0];
+
+	System.out.println("Alarm: " + 3*waiters + " timed waits, "
+			   + totalTimedOut + " timed out, in "
+			   + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static int checkTimedOut(long time, long timeout) {
+	Lib.assertTrue(Machine.timer().getTime() >= time + timeout);
+	return 1;
+    }
+
+    private static KThread[] forkWaiters(int count, Runnable target) {
+	KThread[] threads = new KThread[count];
+	for (int i=0; i<count; i++) {
+	    threads[i] = new KThread(target).setName("waiter " + i);
+	    threads[i].fork();
+	}
+	return threads;
+    }
+
+    private static void joinAll(KThread[] threads) {
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    private Sleeper[] wheel;
+    private int mask;
+    /** The first slot that may still hold threads that are not yet due. */
+    private long nextSlot = 0;
+    private boolean preempt;
+
+    private HashMap<KThread, Sleeper> sleepers =
+	new HashMap<KThread, Sleeper>();
+    private ArrayList<Sleeper> expired = new ArrayList<Sleeper>();
 }
@@ -0,0 +1,400 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Iterator;
+
+/**
+ * A completely fair scheduler. Each thread accumulates virtual runtime as it
+ * uses the processor, and the next thread to be dequeued is always the
+ * waiting thread with the least virtual runtime, with ties broken by thread
+ * ID. Over time every thread therefore gets a share of the processor in
+ * proportion to its weight, without the randomness of a lottery.
+ *
+ * <p>
+ * A thread's weight is derived from its priority, which ranges from
+ * <tt>PriorityScheduler.priorityMinimum</tt> to
+ * <tt>PriorityScheduler.priorityMaximum</tt>. A thread at the default
+ * priority has weight 1024, and each priority level above or below that
+ * weighs 25% more or less. Virtual runtime advances by the simulated time
+ * the thread ran, scaled by 1024 over its weight.
+ *
+ * <p>
+ * A thread that has been asleep is not allowed to bank the time it slept:
+ * when it begins waiting again, its virtual runtime is raised to at least
+ * the smallest virtual runtime seen so far, less
+ * <tt>CFSScheduler.sleeperCredit</tt> ticks.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+	this(Config.getInteger("CFSScheduler.sleeperCredit",
+			       Stats.TimerTicks/2));
+    }
+
+    private CFSScheduler(int sleeperCredit) {
+	this.sleeperCredit = sleeperCredit;
+	Lib.assertTrue(sleeperCredit >= 0);
+    }
+
+    /**
+     * Allocate a new virtual runtime thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					weight.
+     * @return	a new virtual runtime thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new CFSQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		       priority <= PriorityScheduler.priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority != PriorityScheduler.priorityMaximum) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority != PriorityScheduler.priorityMinimum) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the thread giving up the processor for the time it ran. A
+     * thread that is already waiting in a queue was charged when it began
+     * waiting.
+     */
+    public void switchingThreads(KThread from, KThread to) {
+	switchingThreads(from, to, Machine.timer().getTime());
+    }
+
+    private void switchingThreads(KThread from, KThread to, long now) {
+	// the idle thread is never queued, so it has no state
+	if (from.schedulingState != null) {
+	    ThreadState state = getThreadState(from);
+	    if (state.waitingOn == null)
+		state.charge(now);
+	}
+
+	lastSwitchTime = now;
+
+	if (to.schedulingState != null)
+	    minVruntime = Math.max(minVruntime, getThreadState(to).vruntime);
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread.
+     *
+     * @param	thread	the thread.
+     * @return	the virtual runtime of the thread, in weighted ticks.
+     */
+    public long getVruntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).vruntime;
+    }
+
+    /**
+     * Return the weight of a thread at the specified priority.
+     *
+     * @param	priority	the priority.
+     * @return	the weight.
+     */
+    public static int getWeight(int priority) {
+	return weights[priority - PriorityScheduler.priorityMinimum];
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime and then
+     * by thread ID. A thread's virtual runtime only changes while it is not
+     * waiting, so the order never goes stale.
+     */
+    protected class CFSQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    // the current thread is charged before its key is fixed
+	    if (thread == KThread.currentThread())
+		state.charge(Machine.timer().getTime());
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - sleeperCredit);
+
+	    state.waitingOn = this;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.waitingOn = null;
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread);
+	}
+
+	/**
+	 * Nothing is donated, so the waiting threads stay where they are.
+	 */
+	public void transferAccess(KThread thread) {
+	    acquire(thread);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    waitQueue.remove(state);
+	    state.waitingOn = null;
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its virtual runtime,
+     * and the queue it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. A new thread starts with the smallest virtual
+	 * runtime seen so far, so it neither jumps ahead of nor falls behind
+	 * the threads already running.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.vruntime = minVruntime;
+	}
+
+	/**
+	 * Add the time since the last context switch, or since this thread
+	 * was last charged, to its virtual runtime.
+	 *
+	 * @param	now	the current time.
+	 */
+	void charge(long now) {
+	    long ran = now - Math.max(lastSwitchTime, chargedTime);
+
+	    // keep the remainder of the division, so short runs add up
+	    if (ran > 0) {
+		long scaled = ran * getWeight(PriorityScheduler.priorityDefault)
+		    + remainder;
+		vruntime += scaled / getWeight(priority);
+		remainder = scaled % getWeight(priority);
+	    }
+
+	    chargedTime = now;
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (vruntime < state.vruntime)
+		return -1;
+	    else if (vruntime > state.vruntime)
+		return 1;
+	    else
+		return thread.compareTo(state.thread);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = PriorityScheduler.priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime;
+
+	private long chargedTime = 0;
+	private long remainder = 0;
+	private CFSQueue waitingOn = null;
+    }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler and
+     * threads that are never forked, running them in turn against a clock
+     * of its own, so it works whatever scheduler the kernel is using. Checks
+     * that two threads that never block share the processor in proportion
+     * to their weights while their virtual runtimes stay together, and that
+     * a thread that slept while they ran gets only
+     * <tt>sleeperCredit</tt> ticks of catching up when it wakes.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int credit = Stats.TimerTicks/2, slice = 100;
+	CFSScheduler scheduler = new CFSScheduler(credit);
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+
+	KThread low = new KThread().setName("low");
+	KThread high = new KThread().setName("high");
+	KThread sleeper = new KThread().setName("sleeper");
+	scheduler.setPriority(high, PriorityScheduler.priorityDefault+4);
+	scheduler.getThreadState(sleeper);
+
+	// low starts running, with high ready; each slice, the running
+	// thread goes back on the ready queue and the least-run one runs
+	long[] now = new long[1];
+	long[] ran = new long[2];
+	KThread running = low;
+	readyQueue.waitForAccess(high);
+
+	for (int i=0; i<10000; i++)
+	    running = runSlice(scheduler, readyQueue, running, slice, now,
+			       low, ran);
+
+	double share = (double) ran[1] / ran[0];
+	double expected = (double) getWeight(scheduler.getPriority(high)) /
+	    getWeight(PriorityScheduler.priorityDefault);
+	Lib.assertTrue(Math.abs(share/expected - 1) < 0.01);
+	Lib.assertTrue(Math.abs(scheduler.getVruntime(high) -
+				scheduler.getVruntime(low)) <= slice);
+
+	System.out.println("CFSScheduler: weighted sharing of "
+			   + (ran[0] + ran[1]) + " ticks passed");
+
+	// the sleeper wakes far behind the others, but may only catch up by
+	// the credit before they run again
+	readyQueue.waitForAccess(sleeper);
+	Lib.assertTrue(scheduler.getVruntime(sleeper) ==
+		       scheduler.minVruntime - credit);
+
+	running = runSlice(scheduler, readyQueue, running, slice, now, low,
+			   ran);
+	Lib.assertTrue(running == sleeper);
+
+	int sleeperSlices = 0;
+	while (running == sleeper) {
+	    sleeperSlices++;
+	    running = runSlice(scheduler, readyQueue, running, slice, now,
+			       low, ran);
+	}
+	Lib.assertTrue(sleeperSlices*slice <= credit + slice);
+
+	System.out.println("CFSScheduler: sleeper credit of " + credit
+			   + " ticks passed");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Let the running thread run for one slice on the test's clock, then put
+     * it back on the ready queue and return the thread that runs next.
+     */
+    private static KThread runSlice(CFSScheduler scheduler,
+				    ThreadQueue readyQueue, KThread running,
+				    int slice, long[] now, KThread low,
+				    long[] ran) {
+	now[0] += slice;
+	if (running == low)
+	    ran[0] += slice;
+	else
+	    ran[1] += slice;
+
+	scheduler.getThreadState(running).charge(now[0]);
+	readyQueue.waitForAccess(running);
+
+	KThread next = readyQueue.nextThread();
+	scheduler.switchingThreads(running, next, now[0]);
+	return next;
+    }
+
+    private int sleeperCredit;
+
+    private long lastSwitchTime = 0;
+    /** The smallest virtual runtime of any thread that has been dispatched. */
+    private long minVruntime = 0;
+
+    /**
+     * The weight of each priority, from the lowest. Each priority weighs
+     * 25% more than the one below it.
+     */
+    private static final int[] weights = { 820, 1024, 1280, 1600, 2000,
+					   2500, 3125, 3906 };
+}
@@ -8,16 +8,37 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Words pass through a ring of slots, one by default. A speaker waits only
+ * while every slot is full, and a listener only while every slot is empty.
+ * Waiting speakers and listeners are served one at a time, in the order of
+ * their condition variable's queue: a listener that empties a slot hands it
+ * to the first waiting speaker, and a speaker that fills one hands the word
+ * to the first waiting listener, so no thread is woken only to find the slot
+ * taken again.
  */
 public class Communicator {
     /**
-     * Allocate a new communicator.
+     * Allocate a new communicator with a single slot.
      */
     public Communicator() {
-    	this.conditionLock = new Lock();
-    	this.speakQueue = new Condition2(conditionLock);
-    	this.listenQueue = new Condition2(conditionLock);
-    	inTrans = false;
+	this(1);
+    }
+
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	slots	the number of words that can be spoken before any
+     *			of them are listened for. Must be positive.
+     */
+    public Communicator(int slots) {
+	Lib.assertTrue(slots > 0);
+
+	words = new int[slots];
+	conditionLock = new Lock();
+	speakQueue = new Condition2(conditionLock);
+	listenQueue = new Condition2(conditionLock);
     }
 
     /**
@@ -31,14 +52,29 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-    	this.conditionLock.acquire();
-    		while(inTrans) {
-    			this.speakQueue.sleep();
-    		}
-    		this.message = word;
-    		this.inTrans = true;
-    		this.listenQueue.wake();
-    		this.conditionLock.release();
+	conditionLock.acquire();
+	waitToSpeak();
+	put(word);
+	conditionLock.release();
+    }
+
+    /**
+     * Transfer every word in <i>words</i>, in order, taking as many free
+     * slots at a time as there are. Other speakers' words may come between
+     * them if this thread has to wait for a slot.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	conditionLock.acquire();
+	for (int i=0; i<words.length; ) {
+	    waitToSpeak();
+	    put(words[i++]);
+
+	    while (i < words.length && count + reserved < this.words.length)
+		put(words[i++]);
+	}
+	conditionLock.release();
     }
 
     /**
@@ -46,34 +82,112 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
-    	int listened = message;
-    	this.conditionLock.acquire();
-    		while(!inTrans) {
-    				this.listenQueue.sleep();
-    		}
-    		inTrans = false;
-    		this.speakQueue.wakeAll();
-    		
-    		this.conditionLock.release();
-    		return listened;
+	conditionLock.acquire();
+	waitToListen();
+	int word = take();
+	conditionLock.release();
+
+	return word;
+    }
+
+    /**
+     * Wait for a thread to speak through this communicator, and then receive
+     * as many words as have been spoken, up to the length of <i>into</i>.
+     *
+     * @param	into	the array to store the words in, from the start.
+     * @return	the number of words received, which is at least one.
+     */
+    public int listen(int[] into) {
+	Lib.assertTrue(into.length > 0);
+
+	conditionLock.acquire();
+	waitToListen();
+	int received = 0;
+	into[received++] = take();
+
+	while (received < into.length && count > claimed)
+	    into[received++] = take();
+	conditionLock.release();
+
+	return received;
+    }
+
+    /**
+     * Wait, if necessary, until a slot is free for the current thread. A
+     * slot is free if it is empty and not being handed to a woken speaker.
+     */
+    private void waitToSpeak() {
+	if (count + reserved == words.length) {
+	    waitingSpeakers++;
+	    speakQueue.sleep();
+	    reserved--;
+	}
+    }
+
+    /**
+     * Wait, if necessary, until a word is spoken for the current thread. A
+     * word is free if it is not being handed to a woken listener.
+     */
+    private void waitToListen() {
+	if (count == claimed) {
+	    waitingListeners++;
+	    listenQueue.sleep();
+	    claimed--;
+	}
     }
-    
+
+    /**
+     * Put a word in the next free slot, and hand it to the first waiting
+     * listener if there is one.
+     */
+    private void put(int word) {
+	int tail = head + count;
+	if (tail >= words.length)
+	    tail -= words.length;
+	words[tail] = word;
+	count++;
+
+	if (waitingListeners > 0) {
+	    waitingListeners--;
+	    claimed++;
+	    listenQueue.wake();
+	}
+    }
+
+    /**
+     * Take the oldest word, and hand its slot to the first waiting speaker if
+     * there is one.
+     */
+    private int take() {
+	int word = words[head];
+	if (++head == words.length)
+	    head = 0;
+	count--;
+
+	if (waitingSpeakers > 0) {
+	    waitingSpeakers--;
+	    reserved++;
+	    speakQueue.wake();
+	}
+	return word;
+    }
+
     public static void selfTest(){
-        	
+
     		System.out.println("\nTesting Communicator:");
-        	final Communicator communicator = new Communicator();	
-    		
+        	final Communicator communicator = new Communicator();
+
         	Runnable A = new Runnable(){
-        		
+
         		public void run(){
         			System.out.println("Speaking... Awaiting Verification!");
         			communicator.speak(5);
         			System.out.println("No longer speaking...");
         		}
         	};
-        	
+
         	Runnable B = new Runnable(){
         		public void run(){
         			System.out.println("Listening... Awaiting verification.");
@@ -81,21 +195,117 @@ public class Communicator {
         			System.out.println("No longer listening... Is this your word?: " + x);
         		}
         	};
-        	
+
         	KThread Test1 = new KThread(A);
         	KThread Test2 = new KThread(B);
     		Test1.fork();
     		Test2.fork();
     		Test1.join();
     		Test2.join();
-        	
- 
+
+
     }
-    
-    private Lock conditionLock = new Lock();
-    private Condition2 speakQueue = new Condition2(conditionLock);
-    private Condition2 listenQueue = new Condition2(conditionLock);
-    private int message;
-    private boolean inTrans;
-}
 
+    /**
+     * Pass a stream of words from a group of speakers to as many listeners,
+     * once one word at a time through a single slot and then in batches
+     * through a ring of slots. Checks that every word arrives exactly once,
+     * and that each listener gets each speaker's words in order. Prints the
+     * simulated time and the number of context switches each run took.
+     */
+    public static void pipelineTest() {
+	final int numThreads = 4;
+	final int numWords = Config.getInteger("Communicator.words", 10000);
+	int slots = Config.getInteger("Communicator.slots", 64);
+
+	for (int run=0; run<2; run++) {
+	    final Communicator communicator =
+		new Communicator((run == 0) ? 1 : slots);
+	    final int batch = (run == 0) ? 1 : Math.max(slots/numThreads, 1);
+	    final boolean[] seen = new boolean[numThreads*numWords];
+
+	    KThread[] threads = new KThread[2*numThreads];
+	    for (int i=0; i<numThreads; i++) {
+		final int speaker = i;
+		threads[i] = new KThread(new Runnable() {
+			public void run() {
+			    int[] words = new int[batch];
+			    for (int j=0; j<numWords; j+=batch) {
+				int n = Math.min(batch, numWords-j);
+				for (int k=0; k<n; k++)
+				    words[k] = (j+k)*numThreads + speaker;
+
+				if (n == batch && batch > 1) {
+				    communicator.speak(words);
+				}
+				else {
+				    for (int k=0; k<n; k++)
+					communicator.speak(words[k]);
+				}
+			    }
+			}
+		    }).setName("speaker " + i);
+		threads[numThreads+i] = new KThread(new Runnable() {
+			public void run() {
+			    int[] words = new int[batch];
+			    int[] last = new int[numThreads];
+			    for (int k=0; k<numThreads; k++)
+				last[k] = -1;
+
+			    for (int j=0; j<numWords; ) {
+				int[] into = (numWords-j >= batch) ? words :
+				    new int[numWords-j];
+				int n = 1;
+				if (batch == 1)
+				    into[0] = communicator.listen();
+				else
+				    n = communicator.listen(into);
+
+				for (int k=0; k<n; k++) {
+				    int speaker = into[k] % numThreads;
+				    Lib.assertTrue(!seen[into[k]]);
+				    Lib.assertTrue(into[k] > last[speaker]);
+				    seen[into[k]] = true;
+				    last[speaker] = into[k];
+				}
+				j += n;
+			    }
+			}
+		    }).setName("listener " + i);
+	    }
+
+	    long ticks = Machine.timer().getTime();
+	    int switches = 0;
+	    for (int i=0; i<threads.length; i++)
+		threads[i].fork();
+	    for (int i=0; i<threads.length; i++) {
+		threads[i].join();
+		switches += threads[i].getStats().numContextSwitches;
+	    }
+	    ticks = Machine.timer().getTime() - ticks;
+
+	    for (int i=0; i<seen.length; i++)
+		Lib.assertTrue(seen[i]);
+
+	    System.out.println("Communicator (" + communicator.words.length
+			       + " slots, batches of " + batch + "): "
+			       + numThreads*numWords + " words in " + ticks
+			       + " ticks, " + switches + " context switches");
+	}
+    }
+
+    private int[] words;
+    /** The index in <tt>words</tt> of the oldest word. */
+    private int head = 0;
+    /** The number of words spoken and not yet taken. */
+    private int count = 0;
+    /** The number of free slots handed to woken speakers. */
+    private int reserved = 0;
+    /** The number of words handed to woken listeners. */
+    private int claimed = 0;
+    private int waitingSpeakers = 0, waitingListeners = 0;
+
+    private Lock conditionLock;
+    private Condition2 speakQueue;
+    private Condition2 listenQueue;
+}
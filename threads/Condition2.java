@@ -35,10 +35,37 @@ public class Condition2 {
         boolean status = Machine.interrupt().disable();
         count++;
         waitQueue.waitForAccess(KThread.currentThread());
+        Trace.record(Trace.eventWait, KThread.currentThread(), waitQueue);
         conditionLock.release();
         KThread.sleep();
         conditionLock.acquire();
         Machine.interrupt().restore(status);
+    }
+	/**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it, or for at most <i>timeout</i>
+     * ticks. The current thread must hold the associated lock. The thread
+     * will automatically reacquire the lock before <tt>sleep()</tt> returns.
+     *
+     * @param	timeout	the maximum number of clock ticks to sleep.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out.
+     */
+	public boolean sleep(long timeout) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean status = Machine.interrupt().disable();
+        count++;
+        waitQueue.waitForAccess(KThread.currentThread());
+        Trace.record(Trace.eventWait, KThread.currentThread(), waitQueue);
+        conditionLock.release();
+        boolean woken = ThreadedKernel.alarm.waitForAccess(waitQueue, timeout);
+        // a thread that timed out was not taken off the queue by a wake
+        if (!woken)
+            count--;
+        conditionLock.acquire();
+        Machine.interrupt().restore(status);
+        return woken;
     }
 	/**
      * Wake up at most one thread sleeping on this condition variable. The
@@ -50,7 +77,9 @@ public class Condition2 {
         KThread thread = waitQueue.nextThread();
         if(thread != null) {
             count--;
-            thread.ready();
+            Trace.record(Trace.eventNext, thread, waitQueue);
+            if (!ThreadedKernel.alarm.cancel(thread))
+                thread.ready();
         }
         Machine.interrupt().restore(status);
     }
@@ -62,9 +91,12 @@ public class Condition2 {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean status = Machine.interrupt().disable();
         KThread thread;
-        while((thread = waitQueue.nextThread()) != null)
-            thread.ready();
-        count = 0;
+        while((thread = waitQueue.nextThread()) != null) {
+            count--;
+            Trace.record(Trace.eventNext, thread, waitQueue);
+            if (!ThreadedKernel.alarm.cancel(thread))
+                thread.ready();
+        }
         Machine.interrupt().restore(status);
     }
 	/**
@@ -0,0 +1,400 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.PriorityQueue;
+import java.util.Iterator;
+
+/**
+ * An earliest-deadline-first scheduler. The next thread to be dequeued is
+ * always the waiting thread whose current job has the earliest deadline.
+ * Threads with equal deadlines, and threads with no deadline at all, are
+ * dequeued in the order they began waiting, after every thread that has a
+ * deadline.
+ *
+ * <p>
+ * A thread becomes a real-time task when it is given a relative deadline
+ * with <tt>setDeadline()</tt>, and optionally a period with
+ * <tt>setPeriod()</tt>. Each time the thread is woken by the alarm, a new
+ * job is released, due the relative deadline after the time the thread
+ * asked to be woken at. A periodic thread finishes each job by calling
+ * <tt>waitForNextPeriod()</tt>, which sleeps until its next release.
+ *
+ * <p>
+ * A job misses its deadline if its thread is still using the processor, or
+ * still waiting for it, when the deadline passes. When Nachos halts, the
+ * scheduler prints how many jobs were released and how many missed their
+ * deadlines.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new earliest-deadline-first scheduler.
+     */
+    public EDFScheduler() {
+	this(true);
+    }
+
+    private EDFScheduler(boolean withStats) {
+	if (withStats) {
+	    Stats.addPrintHandler(new Runnable() {
+		    public void run() { printStats(); }
+		});
+	}
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					deadlines.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue();
+    }
+
+    /**
+     * Set the relative deadline of the specified thread, and release a new
+     * job for it now. Must be called with interrupts disabled.
+     *
+     * @param	thread		the thread.
+     * @param	deadline	the number of ticks after each release by which
+     *				the thread's job must be done.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(deadline > 0);
+
+	ThreadState state = getThreadState(thread);
+	state.relativeDeadline = deadline;
+	state.release(Machine.timer().getTime());
+    }
+
+    /**
+     * Return the absolute deadline of the specified thread's current job.
+     * Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	the time by which the current job must be done, or
+     *		<tt>Long.MAX_VALUE</tt> if the thread has no deadline.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Set the period of the specified thread. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread.
+     * @param	period	the number of ticks between releases.
+     */
+    public void setPeriod(KThread thread, long period) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(period > 0);
+
+	getThreadState(thread).period = period;
+    }
+
+    /**
+     * Finish the current thread's job and sleep until its next release. If
+     * the job overran into later periods, the releases it missed are skipped.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	long now = Machine.timer().getTime();
+	long next = nextRelease(state, now);
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(next - now);
+    }
+
+    /**
+     * Return the time of a periodic thread's next release that is not
+     * before the specified time.
+     */
+    private long nextRelease(ThreadState state, long now) {
+	Lib.assertTrue(state.period > 0);
+
+	long next = state.releaseTime + state.period;
+	while (next < now)
+	    next += state.period;
+
+	return next;
+    }
+
+    /**
+     * A job is released whenever a real-time thread is woken by the alarm.
+     */
+    public void releasingThread(KThread thread, long releaseTime) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// the idle thread is never queued, so it has no state
+	if (thread.schedulingState == null)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+	if (state.relativeDeadline > 0)
+	    state.release(releaseTime);
+    }
+
+    /**
+     * A job has missed its deadline if its thread gives up the processor
+     * after the deadline, or is dispatched after it.
+     */
+    public void switchingThreads(KThread from, KThread to) {
+	switchingThreads(from, to, Machine.timer().getTime());
+    }
+
+    private void switchingThreads(KThread from, KThread to, long now) {
+	if (from.schedulingState != null)
+	    getThreadState(from).checkDeadline(now);
+	if (to.schedulingState != null)
+	    getThreadState(to).checkDeadline(now);
+    }
+
+    private void printStats() {
+	System.out.println("EDF jobs: released " + numReleases
+			   + ", deadline misses " + numMisses);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> kept as a heap ordered by deadline, and then by
+     * the order threads began waiting.
+     */
+    protected class EDFQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.waitNumber = numWaits++;
+	    state.waitingOn = this;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.poll();
+	    if (state == null)
+		return null;
+
+	    state.waitingOn = null;
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread);
+	}
+
+	/**
+	 * Nothing is donated, so the waiting threads stay where they are.
+	 */
+	public void transferAccess(KThread thread) {
+	    acquire(thread);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    waitQueue.remove(state);
+	    state.waitingOn = null;
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.deadline + ") ");
+	    }
+	}
+
+	private PriorityQueue<ThreadState> waitQueue =
+	    new PriorityQueue<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its relative deadline and period,
+     * and the release time and absolute deadline of its current job.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts with no deadline.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Release a new job, due the relative deadline after the specified
+	 * time. If the thread is waiting, it is moved to its new place in the
+	 * queue.
+	 *
+	 * @param	time	the release time of the new job.
+	 */
+	void release(long time) {
+	    EDFQueue queue = waitingOn;
+	    if (queue != null)
+		queue.waitQueue.remove(this);
+
+	    releaseTime = time;
+	    deadline = time + relativeDeadline;
+	    missed = false;
+	    numReleases++;
+
+	    if (queue != null)
+		queue.waitQueue.add(this);
+	}
+
+	/**
+	 * Count the current job as having missed its deadline, if the
+	 * deadline has passed and the job was not already counted.
+	 *
+	 * @param	now	the current time.
+	 */
+	void checkDeadline(long now) {
+	    if (!missed && now > deadline) {
+		missed = true;
+		numMisses++;
+	    }
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (deadline < state.deadline)
+		return -1;
+	    else if (deadline > state.deadline)
+		return 1;
+	    else
+		return Long.compare(waitNumber, state.waitNumber);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The relative deadline of each job, or 0 if there is none. */
+	protected long relativeDeadline = 0;
+	/** The number of ticks between releases, or 0 if not periodic. */
+	protected long period = 0;
+	/** The release time of the current job. */
+	protected long releaseTime = 0;
+	/** The absolute deadline of the current job. */
+	protected long deadline = Long.MAX_VALUE;
+
+	private boolean missed = false;
+	private long waitNumber;
+	private EDFQueue waitingOn = null;
+    }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler and
+     * threads that are never forked, with a clock of its own, so it works
+     * whatever scheduler the kernel is using. Checks that waiting threads
+     * are dequeued by deadline, that a job released while its thread waits
+     * moves it in the queue, that a periodic job that overran skips the
+     * releases it missed, and that each late job is counted as a miss once.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	EDFScheduler scheduler = new EDFScheduler(false);
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread none = new KThread().setName("none");
+
+	scheduler.getThreadState(a).relativeDeadline = 300;
+	scheduler.getThreadState(b).relativeDeadline = 100;
+	scheduler.getThreadState(c).relativeDeadline = 200;
+	scheduler.getThreadState(none);
+
+	// threads with no deadline come last; b's job is released late and
+	// sorts after c's
+	readyQueue.waitForAccess(none);
+	readyQueue.waitForAccess(a);
+	readyQueue.waitForAccess(b);
+	readyQueue.waitForAccess(c);
+	scheduler.releasingThread(a, 0);
+	scheduler.releasingThread(c, 0);
+	scheduler.releasingThread(b, 150);
+
+	Lib.assertTrue(scheduler.getThreadState(b).deadline == 250);
+	Lib.assertTrue(readyQueue.nextThread() == c);
+	Lib.assertTrue(readyQueue.nextThread() == b);
+	Lib.assertTrue(readyQueue.nextThread() == a);
+	Lib.assertTrue(readyQueue.nextThread() == none);
+	Lib.assertTrue(readyQueue.nextThread() == null);
+
+	System.out.println("EDFScheduler: deadline order passed");
+
+	// a periodic job that finishes on time sleeps to the next period, and
+	// one that overran into the third period skips the second
+	ThreadState state = scheduler.getThreadState(a);
+	state.period = 1000;
+	scheduler.releasingThread(a, 1000);
+	Lib.assertTrue(scheduler.nextRelease(state, 1200) == 2000);
+	Lib.assertTrue(scheduler.nextRelease(state, 2000) == 2000);
+	Lib.assertTrue(scheduler.nextRelease(state, 3500) == 4000);
+
+	System.out.println("EDFScheduler: period overruns passed");
+
+	// a's job is due at 1300; switching away from it late, and then back
+	// to it, counts one miss, and its next job starts clean
+	long misses = scheduler.numMisses;
+	scheduler.switchingThreads(none, a, 1250);
+	Lib.assertTrue(scheduler.numMisses == misses);
+	scheduler.switchingThreads(a, none, 1400);
+	scheduler.switchingThreads(none, a, 1500);
+	Lib.assertTrue(scheduler.numMisses == misses+1);
+
+	scheduler.releasingThread(a, 2000);
+	scheduler.switchingThreads(a, none, 2200);
+	Lib.assertTrue(scheduler.numMisses == misses+1);
+	scheduler.switchingThreads(none, a, 2301);
+	Lib.assertTrue(scheduler.numMisses == misses+2);
+
+	System.out.println("EDFScheduler: deadline misses passed");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private long numWaits = 0;
+    private long numReleases = 0, numMisses = 0;
+}
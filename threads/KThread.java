@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Vector;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -47,6 +49,13 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
+	    if (Config.getBoolean("KThread.printStats", false)) {
+		allThreads = new Vector<KThread>();
+		Stats.addPrintHandler(new Runnable() {
+			public void run() { printAllStats(); }
+		    });
+	    }
+
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
@@ -57,6 +66,9 @@ public class KThread {
 
 	    createIdleThread();
 		}
+
+	if (allThreads != null)
+	    allThreads.add(this);
     }
 
     /**
@@ -114,6 +126,39 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the numerical ID of this thread, as used in traces.
+     *
+     * @return	the ID of this thread.
+     */
+    int getID() {
+	return id;
+    }
+
+    /**
+     * Get the statistics kept for this thread, brought up to date with the
+     * time spent in its current state.
+     *
+     * @return	the statistics for this thread.
+     */
+    public ThreadStats getStats() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	setStatus(status);
+
+	Machine.interrupt().restore(intStatus);
+	return stats;
+    }
+
+    /**
+     * Count a lock acquired by this thread. Unlike <tt>getStats()</tt>, this
+     * does not bring the timings up to date, so it is cheap enough to call on
+     * every acquire.
+     */
+    void lockAcquired() {
+	stats.numLockAcquires++;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -195,6 +240,7 @@ public class KThread {
 		
 		KThread tbj = currentThread.joinQueue.nextThread();
 		while(tbj != null){	
+			Trace.record(Trace.eventNext, tbj, currentThread.joinQueue);
 			tbj.ready();
 			tbj = currentThread.joinQueue.nextThread();
 		}
@@ -210,7 +256,7 @@ public class KThread {
 		i++;
 		}*/
 	
-	currentThread.status = statusFinished;
+	currentThread.setStatus(statusFinished);
 	sleep();
     }
 
@@ -260,8 +306,10 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
+	Trace.record(Trace.eventSleep, currentThread, -1);
+
 	if (currentThread.status != statusFinished)
-	    currentThread.status = statusBlocked;
+	    currentThread.setStatus(statusBlocked);
 
 	runNextThread();
     }
@@ -276,9 +324,11 @@ public class KThread {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
 	
-	status = statusReady;
+	setStatus(statusReady);
 	if (this != idleThread)
 	    readyQueue.waitForAccess(this);
+
+	Trace.record(Trace.eventReady, this, readyQueue);
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -300,6 +350,7 @@ public class KThread {
 				joinQueue.acquire(this);
 			}
 		joinQueue.waitForAccess(currentThread);
+		Trace.record(Trace.eventWait, currentThread, joinQueue);
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 		}
@@ -329,12 +380,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>KThread.idleFastForward</tt> is set, the idle thread skips
+     * straight to the next interrupt instead of yielding once per kernel tick
+     * until it arrives.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	final boolean fastForward =
+	    Config.getBoolean("KThread.idleFastForward", false);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (fastForward)
+			Machine.interrupt().idle();
+		    KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -382,6 +447,11 @@ public class KThread {
 
     	currentThread.saveState();
 
+    	ThreadedKernel.scheduler.switchingThreads(currentThread, this);
+    	if (this != currentThread)
+    	    stats.numContextSwitches++;
+    	Trace.record(Trace.eventSwitch, this, currentThread.id);
+
     	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
@@ -405,7 +475,7 @@ public class KThread {
 
 		Machine.autoGrader().runningThread(this);
 	
-		status = statusRunning;
+		setStatus(statusRunning);
 
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
@@ -476,6 +546,79 @@ public class KThread {
     		
     	}
 
+    /**
+     * Measure the cost of a context switch. A forked thread and the current
+     * thread yield to each other <tt>KThread.pingPongYields</tt> times each,
+     * and the wall-clock time this takes is printed, along with the number of
+     * context switches.
+     */
+    public static void pingPongTest() {
+	final int yields = Config.getInteger("KThread.pingPongYields", 500000);
+
+	KThread pong = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<yields; i++)
+			KThread.yield();
+		}
+	    }).setName("pong");
+
+	int switches = currentThread.getStats().numContextSwitches;
+	long start = System.currentTimeMillis();
+
+	pong.fork();
+	for (int i=0; i<yields; i++)
+	    KThread.yield();
+	pong.join();
+
+	long time = System.currentTimeMillis() - start;
+	switches = currentThread.getStats().numContextSwitches - switches
+	    + pong.getStats().numContextSwitches;
+
+	System.out.println("KThread: 2 threads yielded " + yields
+			   + " times each in " + time + " ms, " + switches
+			   + " context switches");
+    }
+
+    /**
+     * Change the status of this thread, first charging the time spent in the
+     * old status to this thread's statistics.
+     *
+     * @param	newStatus	the new status.
+     */
+    private void setStatus(int newStatus) {
+	long time = Machine.timer().getTime();
+	long userTime = Machine.timer().getUserTime();
+
+	switch (status) {
+	case statusReady:
+	    stats.readyTicks += time - statusTime;
+	    break;
+	case statusRunning:
+	    stats.userTicks += userTime - statusUserTime;
+	    stats.kernelTicks += (time - statusTime) - (userTime - statusUserTime);
+	    break;
+	case statusBlocked:
+	    stats.blockedTicks += time - statusTime;
+	    break;
+	}
+
+	status = newStatus;
+	statusTime = time;
+	statusUserTime = userTime;
+    }
+
+    /**
+     * Print the statistics of every thread that has been created. Called when
+     * Nachos halts, if <tt>KThread.printStats</tt> is set.
+     */
+    private static void printAllStats() {
+	for (int i=0; i<allThreads.size(); i++) {
+	    KThread thread = allThreads.elementAt(i);
+	    thread.setStatus(thread.status);
+	    System.out.println(thread + ": " + thread.stats);
+	}
+    }
+
     private static final char dbgThread = 't';
 
     /**
@@ -497,6 +640,8 @@ public class KThread {
      * on the ready queue and not running).
      */
     private int status = statusNew;
+    private long statusTime, statusUserTime;
+    private ThreadStats stats = new ThreadStats();
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
@@ -508,6 +653,8 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    /** Every thread created, if their statistics are printed at halt. */
+    private static Vector<KThread> allThreads = null;
     
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
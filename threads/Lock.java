@@ -38,6 +38,7 @@ public class Lock {
 
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
+	    Trace.record(Trace.eventWait, thread, waitQueue);
 	    KThread.sleep();
 	}
 	else {
@@ -45,9 +46,43 @@ public class Lock {
 	    lockHolder = thread;
 	}
 
-	Lib.assertTrue(lockHolder == thread);
+	acquired(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock, waiting at most <i>timeout</i> ticks for
+     * it to become <i>free</i>. The current thread must not already hold this
+     * lock.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait. If this is
+     *			not positive, the lock is only acquired if it is
+     *			<i>free</i>.
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean acquired = true;
+
+	if (lockHolder != null) {
+	    waitQueue.waitForAccess(thread);
+	    Trace.record(Trace.eventWait, thread, waitQueue);
+	    acquired = ThreadedKernel.alarm.waitForAccess(waitQueue, timeout);
+	}
+	else {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+
+	if (acquired)
+	    acquired(thread);
 
 	Machine.interrupt().restore(intStatus);
+	return acquired;
     }
 
     /**
@@ -58,12 +93,26 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
+	Trace.record(Trace.eventRelease, lockHolder, waitQueue);
+
+	if ((lockHolder = waitQueue.nextThread()) != null) {
+	    Trace.record(Trace.eventNext, lockHolder, waitQueue);
+	    if (!ThreadedKernel.alarm.cancel(lockHolder))
+		lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Account for the current thread having acquired this lock.
+     */
+    private void acquired(KThread thread) {
+	Lib.assertTrue(lockHolder == thread);
+	thread.lockAcquired();
+	Trace.record(Trace.eventAcquire, thread, waitQueue);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,20 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * drawing the winner, adding a thread, and changing a thread's tickets all
+ * take time logarithmic in the number of waiting threads. Each thread caches
+ * its effective tickets, and a change is passed along the chain of donations
+ * as a difference, so no sums need to be recomputed.
+ *
+ * <p>
+ * Sums of donations cannot go around a cycle, which deadlocked threads would
+ * form. So a thread whose wait would close a cycle still takes part in its
+ * queue's lottery, but does not donate to the queue's owner. If a wait on
+ * the cycle is later given up, or a queue on it changes hands, the thread
+ * donates again once no cycle remains.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +54,702 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      priorityMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority != priorityMaximum) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean changed = false;
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority != priorityMinimum) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
     }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have. A thread's
+     * effective tickets, including donations, are counted without limit,
+     * but are reported as at most this many.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Every waiting thread has a slot in a Fenwick tree whose nodes hold the
+     * sums of the effective tickets in ranges of slots.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, even though
+	 * threads are waiting, so that they donate to it.
+	 */
+	public void transferAccess(KThread thread) {
+	    acquire(thread);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    return getLotteryState(thread).stopWaiting(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		setOwner(null);
+		return null;
+	    }
+
+	    // hold the lottery
+	    long ticket = (long) (Lib.random() * totalTickets);
+	    LotteryState winner = slots[findSlot(Math.min(ticket,
+							  totalTickets-1))];
+
+	    winner.acquire(this);
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=1; slot<=highestSlot; slot++) {
+		if (slots[slot] != null)
+		    System.out.print(slots[slot].thread + " ("
+				     + slots[slot].effectiveTickets + ") ");
+	    }
+	}
+
+	/**
+	 * Return the number of tickets this queue donates to its owner.
+	 *
+	 * @return	the total effective tickets of the waiting threads that
+	 *		donate, or 0 if this queue does not transfer tickets.
+	 */
+	long getDonation() {
+	    return transferPriority ? donation : 0;
+	}
+
+	/**
+	 * Test whether the chain of donations from this queue's owner leads
+	 * to the specified thread, so that the thread would close a cycle by
+	 * waiting on this queue. The chain can only reach a thread that owns
+	 * a queue with waiters, so callers skip other threads.
+	 */
+	boolean leadsTo(LotteryState state) {
+	    long visit = ++numVisits;
+
+	    for (LotteryState s=owner; s!=null && s.lastVisit!=visit; ) {
+		if (s == state)
+		    return true;
+		s.lastVisit = visit;
+
+		LotteryQueue waitQueue = s.waitingOn;
+		if (waitQueue == null || s.cyclic || !waitQueue.transferPriority)
+		    return false;
+
+		s = waitQueue.owner;
+	    }
+
+	    return false;
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, taking this
+	 * queue's donation away from the previous owner.
+	 */
+	void setOwner(LotteryState newOwner) {
+	    if (!transferPriority)
+		return;
+
+	    LotteryState oldOwner = owner;
+
+	    // a cycle through the old owner is broken once it loses this queue
+	    LotteryState cyclic = null;
+	    if (numCyclic > 0 && oldOwner != null)
+		cyclic = oldOwner.firstCyclic();
+
+	    owner = newOwner;
+
+	    if (oldOwner != null) {
+		oldOwner.addTickets(-donation);
+		if (size > 0)
+		    oldOwner.busyQueues--;
+	    }
+
+	    if (newOwner != null) {
+		newOwner.addTickets(donation);
+		if (size > 0)
+		    newOwner.busyQueues++;
+	    }
+
+	    if (cyclic != null)
+		cyclic.waitingOn.recheck(cyclic);
+	}
+
+	/**
+	 * Give a waiting thread a slot, reusing a free slot if there is one.
+	 */
+	void add(LotteryState state) {
+	    int slot;
+	    if (!freeSlots.isEmpty()) {
+		slot = freeSlots.removeLast();
+	    }
+	    else {
+		if (highestSlot+1 == slots.length)
+		    grow();
+		slot = ++highestSlot;
+	    }
+
+	    slots[slot] = state;
+	    state.slot = slot;
+	    if (size++ == 0 && owner != null)
+		owner.busyQueues++;
+
+	    if (transferPriority && state.busyQueues > 0 && leadsTo(state)) {
+		state.cyclic = true;
+		numCyclic++;
+	    }
+
+	    update(state, state.effectiveTickets);
+	}
+
+	/**
+	 * Take a waiting thread off this queue and free its slot.
+	 */
+	void remove(LotteryState state) {
+	    // a cycle this wait was on is broken once the wait is given up
+	    LotteryState cyclic = null;
+	    if (numCyclic > 0 && !state.cyclic && owner != null)
+		cyclic = owner.firstCyclic();
+
+	    update(state, -state.effectiveTickets);
+
+	    slots[state.slot] = null;
+	    freeSlots.add(state.slot);
+	    state.slot = 0;
+	    state.waitingOn = null;
+	    if (state.cyclic) {
+		state.cyclic = false;
+		numCyclic--;
+	    }
+
+	    // once the queue drains, start filling it from the bottom again
+	    if (--size == 0) {
+		if (owner != null)
+		    owner.busyQueues--;
+		freeSlots.clear();
+		highestSlot = 0;
+	    }
+
+	    if (cyclic != null)
+		cyclic.waitingOn.recheck(cyclic);
+	}
+
+	/**
+	 * Let a waiting thread whose wait closed a cycle donate to this
+	 * queue's owner again, if the cycle has since been broken.
+	 */
+	void recheck(LotteryState state) {
+	    if (leadsTo(state))
+		return;
+
+	    state.cyclic = false;
+	    numCyclic--;
+
+	    donation += state.effectiveTickets;
+	    if (owner != null)
+		owner.addTickets(state.effectiveTickets);
+	}
+
+	/**
+	 * Add to the tickets in a waiting thread's slot, and pass the change
+	 * in this queue's donation on to its owner.
+	 */
+	void update(LotteryState state, long delta) {
+	    if (adjust(state, delta) && transferPriority && owner != null)
+		owner.addTickets(delta);
+	}
+
+	/**
+	 * Add to the tickets in a waiting thread's slot, without changing the
+	 * owner.
+	 *
+	 * @return	<tt>true</tt> if the change is part of this queue's
+	 *		donation.
+	 */
+	boolean adjust(LotteryState state, long delta) {
+	    for (int i=state.slot; i<tree.length; i+=i&-i)
+		tree[i] += delta;
+
+	    totalTickets += delta;
+
+	    if (state.cyclic)
+		return false;
+
+	    donation += delta;
+	    return true;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, counting tickets from
+	 * 0 in slot order.
+	 */
+	private int findSlot(long ticket) {
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(tree.length-1); step>0;
+		 step>>=1) {
+		if (slot+step < tree.length && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slot+1;
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree in linear time.
+	 */
+	private void grow() {
+	    LotteryState[] newSlots = new LotteryState[slots.length*2];
+	    System.arraycopy(slots, 0, newSlots, 0, slots.length);
+	    slots = newSlots;
+
+	    tree = new long[slots.length];
+	    for (int i=1; i<tree.length; i++) {
+		if (slots[i] != null)
+		    tree[i] += slots[i].effectiveTickets;
+		
+		int parent = i + (i&-i);
+		if (parent < tree.length)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that has acquired this queue, if it transfers tickets. */
+	private LotteryState owner = null;
+
+	/** The waiting threads, by slot. Slot 0 is never used. */
+	private LotteryState[] slots = new LotteryState[16];
+	/** The Fenwick tree over the effective tickets in each slot. */
+	private long[] tree = new long[16];
+	private LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+	private int highestSlot = 0;
+	private int size = 0;
+	private long totalTickets = 0;
+	/** The total effective tickets of the waiters that donate. */
+	private long donation = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler: its tickets,
+     * its effective tickets, the queues it owns, and the queue it's waiting
+     * for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    
+	    this.tickets = tickets;
+
+	    addTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+	    
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread has
+	 *				acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitingOn == waitQueue)
+		waitQueue.remove(this);
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Called when the associated thread stops waiting on the specified
+	 * queue without acquiring it. Its tickets are taken back from the
+	 * queue's owner.
+	 *
+	 * @param	waitQueue	the queue the associated thread may be
+	 *				waiting on.
+	 * @return	<tt>true</tt> if the associated thread was waiting on
+	 *		<tt>waitQueue</tt>.
+	 */
+	boolean stopWaiting(LotteryQueue waitQueue) {
+	    if (waitingOn != waitQueue)
+		return false;
+
+	    waitQueue.remove(this);
+	    return true;
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass
+	 * the change on along the chain of queues it is waiting for. Waits
+	 * that would close a cycle do not donate, so the chain cannot loop;
+	 * the walk still stops if it ever comes back around.
+	 *
+	 * @param	delta	the change in effective tickets.
+	 */
+	void addTickets(long delta) {
+	    if (delta == 0)
+		return;
+
+	    LotteryState state = this;
+	    long visit = ++numVisits;
+	    
+	    while (state != null && state.lastVisit != visit) {
+		state.lastVisit = visit;
+		state.effectiveTickets += delta;
+
+		LotteryQueue waitQueue = state.waitingOn;
+		if (waitQueue == null)
+		    return;
+
+		if (!waitQueue.adjust(state, delta))
+		    return;
+
+		state = waitQueue.transferPriority ? waitQueue.owner : null;
+	    }
+	}
+
+	/**
+	 * Return the first thread on the chain of donations from this one
+	 * whose wait closed a cycle.
+	 *
+	 * @return	the thread, or <tt>null</tt> if the chain ends first.
+	 */
+	LotteryState firstCyclic() {
+	    long visit = ++numVisits;
+
+	    for (LotteryState s=this; s!=null && s.lastVisit!=visit; ) {
+		if (s.cyclic)
+		    return s;
+		s.lastVisit = visit;
+
+		LotteryQueue waitQueue = s.waitingOn;
+		if (waitQueue == null || !waitQueue.transferPriority)
+		    return null;
+
+		s = waitQueue.owner;
+	    }
+
+	    return null;
+	}
+
+	/** The thread with which this object is associated. */	   
+	protected KThread thread;
+	/** The tickets held by the associated thread. */
+	protected int tickets = 0;
+	/** The tickets held by the associated thread, plus its donations. */
+	protected long effectiveTickets = 0;
+
+	/** The queue this thread is waiting on, if any. */
+	private LotteryQueue waitingOn = null;
+	/** This thread's slot in <tt>waitingOn</tt>. */
+	private int slot = 0;
+	/**
+	 * <tt>true</tt> if this thread's wait closed a cycle of donations, so
+	 * it does not donate to the owner of <tt>waitingOn</tt>.
+	 */
+	private boolean cyclic = false;
+	/** The number of queues this thread owns that threads wait on. */
+	private int busyQueues = 0;
+	private long lastVisit = 0;
+    }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler and
+     * threads that are never forked, so it works whatever scheduler the
+     * kernel is using. Checks that tickets add up along a long chain of
+     * donations, that deadlocked threads do not donate to themselves but
+     * do once the deadlock is broken, that ticket counts beyond
+     * <tt>Integer.MAX_VALUE</tt> are handled, that winners are drawn in proportion to their tickets, and
+     * that thousands of waiters all get drawn exactly once.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	LotteryScheduler scheduler = new LotteryScheduler();
+
+	// a chain of threads, each waiting on a queue owned by the one ahead
+	int depth = 1000;
+	KThread[] chain = new KThread[depth];
+	ThreadQueue[] locks = new ThreadQueue[depth];
+	for (int i=0; i<depth; i++) {
+	    chain[i] = new KThread().setName("chain " + i);
+	    scheduler.setPriority(chain[i], i+1);
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(chain[i]);
+	}
+	for (int i=1; i<depth; i++)
+	    locks[i-1].waitForAccess(chain[i]);
+
+	// thread i holds the tickets of threads i through depth-1
+	for (int i=0; i<depth; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(chain[i]) ==
+			   (depth*(depth+1) - i*(i+1)) / 2);
+
+	scheduler.setPriority(chain[depth-1], 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) ==
+		       (depth*(depth-1)) / 2 + 1);
+
+	Lib.assertTrue(locks[0].nextThread() == chain[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) == 1);
+
+	System.out.println("LotteryScheduler: donation through a chain of "
+			   + depth + " threads passed");
+
+	// deadlocks: an owner waiting on its own queue, and two threads each
+	// waiting on a queue the other owns, drained in either order or
+	// broken by a timeout or a new owner
+	KThread a = new KThread().setName("a"), b = new KThread().setName("b");
+	ThreadQueue q1 = scheduler.newThreadQueue(true);
+	q1.acquire(a);
+	q1.waitForAccess(a);
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+	Lib.assertTrue(q1.nextThread() == a);
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+
+	for (int order=0; order<3; order++) {
+	    ThreadQueue q2 = scheduler.newThreadQueue(true);
+	    q1.acquire(a);
+	    q2.acquire(b);
+	    q2.waitForAccess(a);
+	    q1.waitForAccess(b);
+	    Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+	    Lib.assertTrue(scheduler.getEffectivePriority(b) == 2);
+
+	    if (order == 0) {
+		Lib.assertTrue(q1.nextThread() == b);
+		Lib.assertTrue(q2.nextThread() == a);
+	    }
+	    else if (order == 1) {
+		// as if a's wait timed out, after which b donates to a
+		Lib.assertTrue(q2.remove(a));
+		Lib.assertTrue(scheduler.getEffectivePriority(b) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 2);
+		Lib.assertTrue(q1.nextThread() == b);
+		Lib.assertTrue(q2.nextThread() == null);
+	    }
+	    else {
+		// a hands q1 over, after which b donates to its new owner
+		KThread c = new KThread().setName("c");
+		q1.acquire(c);
+		Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(c) == 3);
+		Lib.assertTrue(q1.nextThread() == b);
+		Lib.assertTrue(scheduler.getEffectivePriority(c) == 1);
+		Lib.assertTrue(q2.nextThread() == a);
+	    }
+	    Lib.assertTrue(q1.nextThread() == null);
+	    Lib.assertTrue(scheduler.getEffectivePriority(a) == 1);
+	    Lib.assertTrue(scheduler.getEffectivePriority(b) == 1);
+	}
+
+	q1 = scheduler.newThreadQueue(true);
+	q1.waitForAccess(a);
+	q1.waitForAccess(b);
+	Lib.assertTrue(q1.nextThread() != null && q1.nextThread() != null);
+
+	System.out.println("LotteryScheduler: donation cycles passed");
+
+	// donations beyond the largest ticket count
+	ThreadQueue queue = scheduler.newThreadQueue(true);
+	KThread owner = new KThread().setName("owner");
+	queue.acquire(owner);
+	for (int i=0; i<2; i++) {
+	    KThread thread = new KThread().setName("rich " + i);
+	    scheduler.setPriority(thread, priorityMaximum);
+	    queue.waitForAccess(thread);
+	}
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) ==
+		       priorityMaximum);
+	KThread rich = queue.nextThread();
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 1);
+	Lib.assertTrue(queue.nextThread() != rich);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	System.out.println("LotteryScheduler: " + 2L*priorityMaximum
+			   + " donated tickets passed");
+
+	// winners are drawn in proportion to their tickets
+	queue = scheduler.newThreadQueue(false);
+	int[] tickets = { 1, 3, 96 };
+	int[] wins = new int[tickets.length];
+	KThread[] players = new KThread[tickets.length];
+	for (int i=0; i<tickets.length; i++) {
+	    players[i] = new KThread().setName("player " + i);
+	    scheduler.setPriority(players[i], tickets[i]);
+	    queue.waitForAccess(players[i]);
+	}
+
+	int draws = 20000;
+	for (int i=0; i<draws; i++) {
+	    KThread winner = queue.nextThread();
+	    for (int j=0; j<tickets.length; j++) {
+		if (winner == players[j])
+		    wins[j]++;
+	    }
+	    queue.waitForAccess(winner);
+	}
+	for (int i=0; i<tickets.length; i++)
+	    Lib.assertTrue(Math.abs(wins[i] - draws*tickets[i]/100) <
+			   draws/100);
+
+	System.out.println("LotteryScheduler: " + draws
+			   + " draws in proportion to tickets passed");
+
+	// thousands of waiters, each drawn once
+	int waiters = 5000;
+	queue = scheduler.newThreadQueue(true);
+	queue.acquire(owner);
+	for (int i=0; i<waiters; i++) {
+	    KThread thread = new KThread().setName("waiter " + i);
+	    scheduler.setPriority(thread, 1 + Lib.random(100));
+	    queue.waitForAccess(thread);
+	}
+
+	boolean[] drawn = new boolean[waiters];
+	for (int i=0; i<waiters; i++) {
+	    KThread thread = queue.nextThread();
+	    int index = Integer.parseInt(thread.getName().substring(7));
+
+	    Lib.assertTrue(!drawn[index]);
+	    drawn[index] = true;
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	System.out.println("LotteryScheduler: " + waiters
+			   + " waiters each drawn once passed");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private long numVisits = 0;
+    /** The number of waiting threads whose wait closed a cycle. */
+    private int numCyclic = 0;
 }
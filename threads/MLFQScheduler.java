@@ -0,0 +1,423 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels, and the next thread to be dequeued is always the thread that has
+ * been waiting longest at the highest level (level 0) with any waiting
+ * threads.
+ *
+ * <p>
+ * A thread's level reflects how it has used the processor. Each level has a
+ * quantum, counted in timer interrupts, which doubles at each lower level. A
+ * thread that is still running when it uses up its quantum is moved down a
+ * level, so threads that compute for long stretches sink. A thread that is
+ * woken up after blocking, as a thread waiting for I/O is, moves up a level.
+ * To keep the threads at the lowest levels from starving, every thread is
+ * periodically moved back to level 0.
+ *
+ * <p>
+ * <tt>nachos.conf</tt> sets the number of levels
+ * (<tt>MLFQScheduler.levels</tt>), the quantum at level 0
+ * (<tt>MLFQScheduler.quantum</tt>), and the number of timer interrupts
+ * between boosts back to level 0 (<tt>MLFQScheduler.boostInterval</tt>, or
+ * 0 never to boost). When Nachos halts, the scheduler prints how many timer
+ * interrupts found the running thread at each level, with the number of
+ * threads moved down from and up to each level.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	this(Config.getInteger("MLFQScheduler.levels", 4),
+	     Config.getInteger("MLFQScheduler.quantum", 1),
+	     Config.getInteger("MLFQScheduler.boostInterval", 50));
+
+	Stats.addPrintHandler(new Runnable() {
+		public void run() { printStats(); }
+	    });
+    }
+
+    /**
+     * Allocate a new multi-level feedback queue scheduler that does not
+     * print statistics when Nachos halts.
+     */
+    private MLFQScheduler(int numLevels, int quantum, int boostInterval) {
+	this.numLevels = numLevels;
+	this.quantum = quantum;
+	this.boostInterval = boostInterval;
+
+	Lib.assertTrue(numLevels > 0 && numLevels < 31);
+	Lib.assertTrue(quantum > 0 && boostInterval >= 0);
+
+	levelRunning = new long[numLevels];
+	levelDemotions = new long[numLevels];
+	levelPromotions = new long[numLevels];
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					level.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, counting up from the lowest
+     * level so that a greater value means a better level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for a timer interrupt, moving it down a level
+     * if it has used up its quantum, and boost every thread back to level 0
+     * if it is time.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	charge(KThread.currentThread());
+    }
+
+    /**
+     * Charge the specified thread, which was running, for a timer interrupt.
+     */
+    private void charge(KThread thread) {
+	numTimerInterrupts++;
+	if (boostInterval > 0 && numTimerInterrupts % boostInterval == 0)
+	    boostNumber++;
+
+	// the idle thread is never queued, so it has no state
+	if (thread.schedulingState == null)
+	    return;
+
+	ThreadState state = getThreadState(thread);
+	int level = state.getLevel();
+
+	levelRunning[level]++;
+
+	if (++state.used >= getQuantum(level)) {
+	    state.used = 0;
+
+	    if (level < numLevels-1) {
+		levelDemotions[level]++;
+		state.level = level+1;
+	    }
+	}
+    }
+
+    /**
+     * Return the quantum of the specified level, in timer interrupts.
+     *
+     * @param	level	the level.
+     * @return	the number of timer interrupts a thread at this level may
+     *		run for before it is moved down a level.
+     */
+    public int getQuantum(int level) {
+	return quantum << level;
+    }
+
+    private void printStats() {
+	for (int level=0; level<numLevels; level++) {
+	    System.out.println("MLFQ level " + level + ": timer interrupts "
+			       + levelRunning[level] + ", demotions "
+			       + levelDemotions[level] + ", promotions "
+			       + levelPromotions[level]);
+	}
+	System.out.println("MLFQ boosts: " + boostNumber);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    levels = new ArrayList<LinkedList<ThreadState>>(numLevels);
+	    for (int level=0; level<numLevels; level++)
+		levels.add(new LinkedList<ThreadState>());
+	}
+
+	/**
+	 * Add a thread to the end of its level. If some other thread is
+	 * adding it, it is being woken up after blocking, so it first moves up
+	 * a level and starts a new quantum.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    int level = state.getLevel();
+
+	    if (thread != KThread.currentThread()) {
+		state.used = 0;
+
+		if (level > 0) {
+		    level--;
+		    levelPromotions[level]++;
+		    state.level = level;
+		}
+	    }
+
+	    state.waitNumber = numWaits++;
+
+	    boost();
+	    levels.get(level).add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    for (int level=0; level<numLevels; level++) {
+		if (!levels.get(level).isEmpty())
+		    return levels.get(level).removeFirst().thread;
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread);
+	}
+
+	/**
+	 * Nothing is donated, so the waiting threads stay where they are.
+	 */
+	public void transferAccess(KThread thread) {
+	    acquire(thread);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    for (int level=0; level<numLevels; level++) {
+		if (levels.get(level).remove(state))
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		for (Iterator<ThreadState> i=levels.get(level).iterator();
+		     i.hasNext(); )
+		    System.out.print(i.next().thread + " ");
+	    }
+	}
+
+	/**
+	 * If every thread has been boosted since this queue was last used,
+	 * move all the waiting threads to level 0, in the order they began
+	 * waiting.
+	 */
+	private void boost() {
+	    if (boostNumber == queueBoostNumber)
+		return;
+
+	    queueBoostNumber = boostNumber;
+
+	    for (int level=1; level<numLevels; level++) {
+		levels.get(0).addAll(levels.get(level));
+		levels.get(level).clear();
+	    }
+
+	    Collections.sort(levels.get(0), new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			return Long.compare(a.waitNumber, b.waitNumber);
+		    }
+		});
+	}
+
+	private ArrayList<LinkedList<ThreadState>> levels;
+	private long queueBoostNumber = boostNumber;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how much of its
+     * quantum it has used.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it back to
+	 * level 0 if every thread has been boosted since it was last seen.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (threadBoostNumber != boostNumber) {
+		threadBoostNumber = boostNumber;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The number of timer interrupts used of the current quantum. */
+	protected int used = 0;
+
+	private long waitNumber;
+	private long threadBoostNumber = boostNumber;
+    }
+
+    /**
+     * Tests whether this module is working. Uses private schedulers and
+     * threads that are never forked, charging timer interrupts to them
+     * directly, so it works whatever scheduler the kernel is using. Checks
+     * that a thread that keeps running sinks a level each time it uses up
+     * its quantum, that a woken thread moves up a level, that threads are
+     * dequeued by level and then in FIFO order, that a boost returns every
+     * thread to level 0 in the order they began waiting, and that a thread
+     * can be removed from a queue.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	MLFQScheduler scheduler = new MLFQScheduler(4, 1, 0);
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	// a thread that keeps running sinks to the lowest level and stays
+	KThread cpu = new KThread().setName("cpu");
+	Lib.assertTrue(scheduler.getThreadState(cpu).getLevel() == 0);
+	for (int level=0; level<4; level++) {
+	    for (int i=0; i<scheduler.getQuantum(level); i++) {
+		Lib.assertTrue(scheduler.getThreadState(cpu).getLevel() ==
+			       level);
+		scheduler.charge(cpu);
+	    }
+	}
+	Lib.assertTrue(scheduler.getThreadState(cpu).getLevel() == 3);
+	Lib.assertTrue(scheduler.levelDemotions[0] == 1 &&
+		       scheduler.levelDemotions[2] == 1 &&
+		       scheduler.levelDemotions[3] == 0);
+
+	// a thread woken by another thread moves up a level with a new
+	// quantum, and goes behind threads at better levels
+	KThread fresh = new KThread().setName("fresh");
+	scheduler.charge(cpu);
+	queue.waitForAccess(cpu);
+	queue.waitForAccess(fresh);
+	Lib.assertTrue(scheduler.getThreadState(cpu).getLevel() == 2);
+	Lib.assertTrue(scheduler.getThreadState(cpu).used == 0);
+	Lib.assertTrue(scheduler.levelPromotions[2] == 1);
+	Lib.assertTrue(queue.nextThread() == fresh);
+	Lib.assertTrue(queue.nextThread() == cpu);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	System.out.println("MLFQScheduler: demotion and promotion passed");
+
+	// a boost returns every thread to level 0, in the order they began
+	// waiting
+	scheduler = new MLFQScheduler(4, 1, 100);
+	queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[8];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("thread " + i);
+	    scheduler.getThreadState(threads[i]);
+	    for (int j=0; j<i; j++)
+		scheduler.charge(threads[i]);
+	}
+	for (int i=threads.length-1; i>=0; i--)
+	    queue.waitForAccess(threads[i]);
+	Lib.assertTrue(scheduler.getThreadState(threads[7]).getLevel() == 2);
+
+	KThread clock = new KThread().setName("clock");
+	scheduler.getThreadState(clock);
+	while (scheduler.numTimerInterrupts < 100)
+	    scheduler.charge(clock);
+	Lib.assertTrue(scheduler.boostNumber == 1);
+
+	for (int i=threads.length-1; i>=0; i--) {
+	    Lib.assertTrue(queue.nextThread() == threads[i]);
+	    Lib.assertTrue(scheduler.getThreadState(threads[i]).getLevel() ==
+			   0);
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	System.out.println("MLFQScheduler: boost passed");
+
+	// removing a waiting thread
+	for (int i=0; i<3; i++)
+	    queue.waitForAccess(threads[i]);
+	Lib.assertTrue(queue.remove(threads[1]));
+	Lib.assertTrue(!queue.remove(threads[1]));
+	Lib.assertTrue(queue.nextThread() == threads[0]);
+	Lib.assertTrue(queue.nextThread() == threads[2]);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	System.out.println("MLFQScheduler: remove passed");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int numLevels, quantum, boostInterval;
+
+    private long numTimerInterrupts = 0;
+    private long numWaits = 0;
+    /** Counts boosts, so that threads and queues can catch up lazily. */
+    private long boostNumber = 0;
+
+    /** Timer interrupts that found the running thread at each level. */
+    private long[] levelRunning;
+    private long[] levelDemotions, levelPromotions;
+}
@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Iterator;
 
 /**
@@ -25,6 +24,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list per priority level and a bitmap of the
+ * levels that are not empty, so the next thread can be found without looking
+ * at any waiting thread. Each thread caches its effective priority. When it
+ * changes, the thread moves to its new level in the queue it is waiting on,
+ * and the change is passed on to the owner of that queue, and so on along
+ * the chain of donations until some effective priority stays the same.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -68,32 +75,34 @@ public class PriorityScheduler extends Scheduler {
 
     public boolean increasePriority() {
 	boolean intStatus = Machine.interrupt().disable();
-		       
+	boolean changed = false;
+
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
-	    return false;
-
-	setPriority(thread, priority+1);
+	if (priority != priorityMaximum) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
 
 	Machine.interrupt().restore(intStatus);
-	return true;
+	return changed;
     }
 
     public boolean decreasePriority() {
 	boolean intStatus = Machine.interrupt().disable();
-		       
+	boolean changed = false;
+
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
-	    return false;
-
-	setPriority(thread, priority-1);
+	if (priority != priorityMinimum) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
 
 	Machine.interrupt().restore(intStatus);
-	return true;
+	return changed;
     }
 
     /**
@@ -140,10 +149,30 @@ public class PriorityScheduler extends Scheduler {
 	    getThreadState(thread).acquire(this);
 	}
 
+	/**
+	 * Make the specified thread the owner of this queue, even though
+	 * threads are waiting, so that they donate to it.
+	 */
+	public void transferAccess(KThread thread) {
+	    acquire(thread);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    return getThreadState(thread).stopWaiting(this);
+	}
+
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +183,116 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (occupied == 0)
+		return null;
+
+	    return heads[topLevel()];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + " ");
+	    }
+	}
+
+	/**
+	 * Return the priority this queue donates to its owner, which is the
+	 * highest effective priority of any waiting thread.
+	 *
+	 * @return	the donated priority, or <tt>priorityMinimum</tt> if no
+	 *		threads are waiting or this queue does not transfer
+	 *		priority.
+	 */
+	int getDonation() {
+	    if (!transferPriority || occupied == 0)
+		return priorityMinimum;
+
+	    return topLevel();
+	}
+
+	private int topLevel() {
+	    return 31 - Integer.numberOfLeadingZeros(occupied);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, taking this
+	 * queue's donation away from the previous owner.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority)
+		return;
+	    
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    if (oldOwner != null) {
+		oldOwner.owned.remove(this);
+		oldOwner.updateEffectivePriority();
+	    }
+
+	    if (newOwner != null) {
+		newOwner.owned.add(this);
+		newOwner.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Add a thread to this queue at the level of its effective priority,
+	 * behind every thread that began waiting before it.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    ThreadState after = tails[level];
+	    while (after != null && after.waitNumber > state.waitNumber)
+		after = after.prev;
+
+	    state.prev = after;
+	    state.next = (after == null) ? heads[level] : after.next;
+
+	    if (state.next != null)
+		state.next.prev = state;
+	    else
+		tails[level] = state;
+
+	    if (after != null)
+		after.next = state;
+	    else
+		heads[level] = state;
+
+	    occupied |= 1 << level;
+	}
+
+	/**
+	 * Remove a thread from this queue. Its effective priority must be the
+	 * one it was added at.
+	 */
+	void remove(ThreadState state, int level) {
+	    if (state.prev != null)
+		state.prev.next = state.next;
+	    else
+		heads[level] = state.next;
+
+	    if (state.next != null)
+		state.next.prev = state.prev;
+	    else
+		tails[level] = state.prev;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+
+	    state.prev = state.next = null;
+	}
+
+	/**
+	 * Pass a change in this queue's donation on to its owner.
+	 */
+	void donationChanged() {
+	    if (owner != null)
+		owner.updateEffectivePriority();
 	}
 
 	/**
@@ -168,6 +300,15 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that has acquired this queue, if it transfers priority. */
+	private ThreadState owner = null;
+
+	/** The waiting threads at each priority level, in FIFO order. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>i</i> is set if some thread is waiting at level <i>i</i>. */
+	private int occupied = 0;
     }
 
     /**
@@ -205,8 +346,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +360,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +376,16 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    int oldDonation = waitQueue.getDonation();
+	    
+	    waitingOn = waitQueue;
+	    waitNumber = numWaits++;
+	    waitQueue.add(this);
+
+	    if (waitQueue.getDonation() != oldDonation)
+		waitQueue.donationChanged();
 	}
 
 	/**
@@ -250,12 +399,202 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitingOn == waitQueue) {
+		waitQueue.remove(this, effectivePriority);
+		waitingOn = null;
+	    }
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Called when the associated thread stops waiting on the specified
+	 * queue without acquiring it. Its donation to the queue's owner is
+	 * taken back.
+	 *
+	 * @param	waitQueue	the queue the associated thread may be
+	 *				waiting on.
+	 * @return	<tt>true</tt> if the associated thread was waiting on
+	 *		<tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#remove
+	 */
+	boolean stopWaiting(PriorityQueue waitQueue) {
+	    if (waitingOn != waitQueue)
+		return false;
+
+	    int oldDonation = waitQueue.getDonation();
+
+	    waitQueue.remove(this, effectivePriority);
+	    waitingOn = null;
+
+	    if (waitQueue.getDonation() != oldDonation)
+		waitQueue.donationChanged();
+
+	    return true;
+	}
+
+	/**
+	 * Recompute the cached effective priority from this thread's own
+	 * priority and the donations of the queues it owns. If it changed,
+	 * move this thread to its new level in the queue it is waiting on,
+	 * which may in turn change that queue's donation to its owner.
+	 */
+	void updateEffectivePriority() {
+	    int newPriority = priority;
+	    for (Iterator<PriorityQueue> i=owned.iterator(); i.hasNext(); )
+		newPriority = Math.max(newPriority, i.next().getDonation());
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    if (waitingOn == null) {
+		effectivePriority = newPriority;
+		return;
+	    }
+
+	    PriorityQueue waitQueue = waitingOn;
+	    int oldDonation = waitQueue.getDonation();
+
+	    waitQueue.remove(this, effectivePriority);
+	    effectivePriority = newPriority;
+	    waitQueue.add(this);
+
+	    if (waitQueue.getDonation() != oldDonation)
+		waitQueue.donationChanged();
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The priority-transferring queues this thread has acquired. */
+	private LinkedList<PriorityQueue> owned = new LinkedList<PriorityQueue>();
+	/** The queue this thread is waiting on, if any. */
+	private PriorityQueue waitingOn = null;
+	/** Orders threads that began waiting at the same priority. */
+	private long waitNumber;
+	/** This thread's neighbours in its level of <tt>waitingOn</tt>. */
+	private ThreadState prev = null, next = null;
     }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler and
+     * threads that are never forked, so it works whatever scheduler the
+     * kernel is using. Checks that a long chain of donations reaches the
+     * front of the chain and is taken back, and that thousands of waiters
+     * come out of a queue in priority order, first-come first-serve within
+     * each priority, each donating to the thread ahead of it.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+
+	// a chain of threads, each waiting on a queue owned by the one ahead
+	int depth = 1000;
+	KThread[] chain = new KThread[depth];
+	ThreadQueue[] locks = new ThreadQueue[depth];
+	for (int i=0; i<depth; i++) {
+	    chain[i] = new KThread().setName("chain " + i);
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(chain[i]);
+	}
+	for (int i=1; i<depth; i++)
+	    locks[i-1].waitForAccess(chain[i]);
+
+	scheduler.setPriority(chain[depth-1], priorityMaximum);
+	for (int i=0; i<depth; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(chain[i]) ==
+			   priorityMaximum);
+
+	scheduler.setPriority(chain[depth-1], priorityMinimum);
+	for (int i=0; i<depth-1; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(chain[i]) ==
+			   priorityDefault);
+
+	scheduler.setPriority(chain[depth/2], priorityMaximum);
+	Lib.assertTrue(locks[0].nextThread() == chain[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) ==
+		       priorityDefault);
+	Lib.assertTrue(scheduler.getEffectivePriority(chain[1]) ==
+		       priorityMaximum);
+
+	System.out.println("PriorityScheduler: donation through a chain of "
+			   + depth + " threads passed");
+
+	// access passes to another thread while two threads wait, and their
+	// donation follows it without them losing their places
+	ThreadQueue shared = scheduler.newThreadQueue(true);
+	KThread first = new KThread().setName("first");
+	KThread second = new KThread().setName("second");
+	KThread high = new KThread().setName("high");
+	KThread low = new KThread().setName("low");
+	scheduler.setPriority(high, priorityMaximum);
+	scheduler.setPriority(low, priorityMinimum);
+
+	shared.acquire(first);
+	shared.waitForAccess(low);
+	shared.waitForAccess(high);
+	shared.transferAccess(second);
+	Lib.assertTrue(scheduler.getEffectivePriority(first) ==
+		       priorityDefault);
+	Lib.assertTrue(scheduler.getEffectivePriority(second) ==
+		       priorityMaximum);
+	Lib.assertTrue(shared.nextThread() == high);
+	Lib.assertTrue(shared.nextThread() == low);
+	Lib.assertTrue(scheduler.getEffectivePriority(second) ==
+		       priorityDefault);
+
+	System.out.println("PriorityScheduler: transfer with threads waiting "
+			   + "passed");
+
+	// thousands of waiters on one queue, donating to its owner
+	int waiters = 5000;
+	ThreadQueue queue = scheduler.newThreadQueue(true);
+	KThread owner = new KThread().setName("owner");
+	queue.acquire(owner);
+
+	int highest = priorityMinimum;
+	for (int i=0; i<waiters; i++) {
+	    KThread thread = new KThread().setName("waiter " + i);
+	    int priority = Lib.random(priorityMaximum-priorityMinimum+1) +
+		priorityMinimum;
+	    highest = Math.max(highest, priority);
+	    
+	    scheduler.setPriority(thread, priority);
+	    queue.waitForAccess(thread);
+	    
+	    Lib.assertTrue(scheduler.getEffectivePriority(owner) ==
+			   Math.max(highest, priorityDefault));
+	}
+
+	int last = priorityMaximum, lastIndex = -1;
+	for (int i=0; i<waiters; i++) {
+	    KThread thread = queue.nextThread();
+	    int priority = scheduler.getPriority(thread);
+	    int index = Integer.parseInt(thread.getName().substring(7));
+
+	    // nothing left waiting can donate more than its own priority
+	    Lib.assertTrue(priority < last ||
+			   (priority == last && index > lastIndex));
+	    Lib.assertTrue(scheduler.getEffectivePriority(thread) == priority);
+	    
+	    last = priority;
+	    lastIndex = index;
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) ==
+		       priorityDefault);
+
+	System.out.println("PriorityScheduler: " + waiters
+			   + " waiters dequeued in priority order passed");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private long numWaits = 0;
 }
@@ -0,0 +1,457 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>. There are four
+ * operations:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no thread holds the lock
+ * for writing (and, see below, no writer is waiting), then hold it for
+ * reading.
+ * <li><tt>releaseRead()</tt>: stop reading, handing the lock to a waiting
+ * writer if this was the last reader.
+ * <li><tt>acquireWrite()</tt>: atomically wait until no thread holds the lock
+ * at all, then hold it for writing.
+ * <li><tt>releaseWrite()</tt>: stop writing, handing the lock to waiting
+ * readers or to a waiting writer.
+ * </ul>
+ *
+ * <p>
+ * In both modes a reader waits while any writer is waiting, so a steady
+ * stream of readers cannot starve writers. The modes differ in who gets the
+ * lock when a writer releases it. With <i>writer preference</i>, the default,
+ * the next waiting writer gets it, and the waiting readers are only let in
+ * once no writers are left. In <i>fair</i> mode, every reader that was
+ * waiting is let in at once, and the next writer gets the lock after those
+ * readers, so readers and writers take turns and neither can starve.
+ *
+ * <p>
+ * Waiting readers and writers wait on thread queues from the scheduler, in
+ * the scheduler's order. If the lock transfers priority, both queues donate
+ * to the thread holding the lock: the writer, or one of the readers.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, only a thread that acquired the lock may release it,
+ * and a thread must not acquire a lock it already holds.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock with writer preference, which transfers
+     * priority. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+	this(false, true);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	fair		<tt>true</tt> if readers and writers should take
+     *				turns, or <tt>false</tt> for writer preference.
+     * @param	transferPriority	<tt>true</tt> if waiting threads should
+     *					donate priority to the threads holding
+     *					the lock.
+     */
+    public ReadWriteLock(boolean fair, boolean transferPriority) {
+	this.fair = fair;
+	this.transferPriority = transferPriority;
+
+	readQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || waitingWriters > 0) {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    Trace.record(Trace.eventWait, thread, readQueue);
+	    KThread.sleep();
+	}
+	else {
+	    if (readers.isEmpty()) {
+		readQueue.acquire(thread);
+		writeQueue.acquire(thread);
+		owner = thread;
+	    }
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+	Trace.record(Trace.eventAcquire, thread, readQueue);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread must hold for
+     * reading.
+     */
+    public void releaseRead() {
+	Lib.assertTrue(isReadHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	readers.remove(thread);
+	Trace.record(Trace.eventRelease, thread, readQueue);
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0) {
+		wakeWriter();
+	    }
+	    else {
+		Lib.assertTrue(waitingReaders == 0);
+		owner = null;
+	    }
+	}
+	else if (thread == owner) {
+	    // a writer may be waiting, so pass its donation on
+	    owner = readers.iterator().next();
+	    transfer(writeQueue, owner);
+	    transfer(readQueue, owner);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    Trace.record(Trace.eventWait, thread, writeQueue);
+	    KThread.sleep();
+	}
+	else {
+	    readQueue.acquire(thread);
+	    writeQueue.acquire(thread);
+	    owner = writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+	Trace.record(Trace.eventAcquire, thread, writeQueue);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread must hold for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Trace.record(Trace.eventRelease, writer, writeQueue);
+	writer = null;
+
+	if (waitingReaders > 0 && (fair || waitingWriters == 0))
+	    wakeReaders();
+	else if (waitingWriters > 0)
+	    wakeWriter();
+	else
+	    owner = null;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Hand this lock, which no thread holds, to the next waiting writer.
+     */
+    private void wakeWriter() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+	Trace.record(Trace.eventNext, writer, writeQueue);
+
+	owner = writer;
+	transfer(readQueue, owner);
+
+	writer.ready();
+    }
+
+    /**
+     * Hand this lock, which no thread holds, to every waiting reader.
+     */
+    private void wakeReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    Trace.record(Trace.eventNext, thread, readQueue);
+	    readers.add(thread);
+	    thread.ready();
+
+	    // the last reader off the queue is left owning it
+	    owner = thread;
+	}
+	waitingReaders = 0;
+
+	transfer(writeQueue, owner);
+    }
+
+    /**
+     * Make the specified thread the owner of a queue that threads may be
+     * waiting on, so that they donate to it.
+     *
+     * @param	queue	the queue to hand over.
+     * @param	thread	the thread that now holds this lock.
+     */
+    private void transfer(ThreadQueue queue, KThread thread) {
+	if (transferPriority)
+	    queue.transferAccess(thread);
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return isWriteHeldByCurrentThread() || isReadHeldByCurrentThread();
+    }
+
+    /**
+     * Test if this module is working. Checks which of a waiting reader and a
+     * waiting writer gets the lock first in each mode, and, with a priority
+     * scheduler, that a waiting writer donates to a reader holding the lock
+     * and that the donation moves when that reader leaves. Then has a group of
+     * readers and a few writers share a table through a plain <tt>Lock</tt>
+     * and through a <tt>ReadWriteLock</tt> in each mode. Each read and write
+     * holds the lock for one timer interrupt. Prints the simulated time each
+     * run took and the number of reads per million ticks.
+     */
+    public static void selfTest() {
+	checkOrder(false);
+	checkOrder(true);
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+	    checkDonation();
+
+	int numReaders = Config.getInteger("ReadWriteLock.readers", 16);
+	int numReads = Config.getInteger("ReadWriteLock.reads", 100);
+	int numWriters = 2, numWrites = 10;
+
+	for (int mode=0; mode<3; mode++) {
+	    final Lock lock = (mode == 0) ? new Lock() : null;
+	    final ReadWriteLock rwLock =
+		(mode == 0) ? null : new ReadWriteLock(mode == 2, true);
+	    final int reads = numReads, writes = numWrites;
+	    final int[] active = new int[2];
+
+	    Runnable reader = new Runnable() {
+		    public void run() {
+			for (int i=0; i<reads; i++) {
+			    if (lock != null)
+				lock.acquire();
+			    else
+				rwLock.acquireRead();
+
+			    Lib.assertTrue(active[1] == 0);
+			    active[0]++;
+			    ThreadedKernel.alarm.waitUntil(Stats.TimerTicks);
+			    active[0]--;
+
+			    if (lock != null)
+				lock.release();
+			    else
+				rwLock.releaseRead();
+			    KThread.yield();
+			}
+		    }
+		};
+	    Runnable writer = new Runnable() {
+		    public void run() {
+			for (int i=0; i<writes; i++) {
+			    if (lock != null)
+				lock.acquire();
+			    else
+				rwLock.acquireWrite();
+
+			    Lib.assertTrue(active[0] == 0 && active[1] == 0);
+			    active[1]++;
+			    ThreadedKernel.alarm.waitUntil(Stats.TimerTicks);
+			    active[1]--;
+
+			    if (lock != null)
+				lock.release();
+			    else
+				rwLock.releaseWrite();
+			    KThread.yield();
+			}
+		    }
+		};
+
+	    long start = Machine.timer().getTime();
+
+	    KThread[] threads = new KThread[numReaders + numWriters];
+	    for (int i=0; i<threads.length; i++) {
+		threads[i] = new KThread((i < numReaders) ? reader : writer);
+		threads[i].setName(((i < numReaders) ? "reader " : "writer ")
+				   + i).fork();
+	    }
+	    for (int i=0; i<threads.length; i++)
+		threads[i].join();
+
+	    long ticks = Machine.timer().getTime() - start;
+	    String name = (mode == 0) ? "Lock" :
+		(mode == 1) ? "ReadWriteLock (writer preference)" :
+		"ReadWriteLock (fair)";
+
+	    System.out.println(name + ": " + numReaders*numReads + " reads, "
+			       + numWriters*numWrites + " writes in " + ticks
+			       + " ticks, "
+			       + (numReaders*numReads*1000000L / ticks)
+			       + " reads per million ticks");
+	}
+    }
+
+    /**
+     * Have a writer hold a new lock while a reader and then a second writer
+     * start waiting for it, and check which of them gets it next.
+     */
+    private static void checkOrder(final boolean fair) {
+	final ReadWriteLock lock = new ReadWriteLock(fair, true);
+	final StringBuffer order = new StringBuffer();
+
+	lock.acquireWrite();
+
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    order.append('r');
+		    lock.releaseRead();
+		}
+	    }).setName("reader");
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    order.append('w');
+		    lock.releaseWrite();
+		}
+	    }).setName("writer");
+
+	reader.fork();
+	while (lock.waitingReaders == 0)
+	    KThread.yield();
+	writer.fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	lock.releaseWrite();
+	reader.join();
+	writer.join();
+
+	Lib.assertTrue(order.toString().equals(fair ? "rw" : "wr"));
+	Lib.assertTrue(lock.owner == null);
+    }
+
+    /**
+     * Have the current thread and a second reader hold a new lock while a
+     * writer with a high priority waits for it, and check who receives the
+     * writer's donation as the readers leave. A lottery scheduler adds the
+     * donation to the holder's own tickets, so only a lower bound is
+     * checked.
+     */
+    private static void checkDonation() {
+	final PriorityScheduler scheduler =
+	    (PriorityScheduler) ThreadedKernel.scheduler;
+	final ReadWriteLock lock = new ReadWriteLock();
+	final Semaphore done = new Semaphore(0);
+
+	lock.acquireRead();
+
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    done.P();
+		    lock.releaseRead();
+		}
+	    }).setName("reader");
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    lock.releaseWrite();
+		}
+	    }).setName("writer");
+
+	boolean intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(writer, PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	reader.fork();
+	while (lock.readers.size() < 2)
+	    KThread.yield();
+	writer.fork();
+	while (lock.waitingWriters == 0)
+	    KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getEffectivePriority() >=
+		       PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	lock.releaseRead();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getEffectivePriority() ==
+		       scheduler.getPriority());
+	Lib.assertTrue(scheduler.getEffectivePriority(reader) >=
+		       PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	done.V();
+	reader.join();
+	writer.join();
+    }
+
+    private boolean fair;
+    private boolean transferPriority;
+
+    /** The thread holding this lock for writing, if any. */
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+    /** The holder of this lock that owns both queues. */
+    private KThread owner = null;
+
+    private ThreadQueue readQueue, writeQueue;
+    private int waitingReaders = 0, waitingWriters = 0;
+}
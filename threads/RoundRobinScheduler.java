@@ -69,6 +69,15 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from wherever it is in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
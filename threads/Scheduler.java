@@ -52,6 +52,43 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts
+     * disabled, just before the current thread is preempted. A scheduler
+     * that accounts for the processor time used by each thread can charge
+     * the current thread here. The default does nothing.
+     */
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Called by <tt>KThread.run()</tt>, with interrupts disabled, just
+     * before the processor is dispatched from one thread to another, or to
+     * the same thread again. A scheduler that accounts for the processor time
+     * used by each thread can charge the previous thread here. The default
+     * does nothing.
+     *
+     * @param	from	the thread giving up the processor.
+     * @param	to	the thread being dispatched.
+     */
+    public void switchingThreads(KThread from, KThread to) {
+    }
+
+    /**
+     * Called by the alarm, with interrupts disabled, when a thread sleeping
+     * in <tt>Alarm.waitUntil()</tt> is due, or is woken early by
+     * <tt>Alarm.cancel()</tt>, just before it is made ready. A scheduler
+     * that runs periodic tasks can start the thread's next job here. The
+     * default does nothing.
+     *
+     * @param	thread		the thread being woken.
+     * @param	releaseTime	the time the thread asked to be woken at, which
+     *				may be earlier than the current time, or the
+     *				current time if it was woken early.
+     */
+    public void releasingThread(KThread thread, long releaseTime) {
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
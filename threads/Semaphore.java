@@ -39,6 +39,7 @@ public class Semaphore {
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
+	    Trace.record(Trace.eventWait, KThread.currentThread(), waitQueue);
 	    KThread.sleep();
 	}
 	else {
@@ -48,6 +49,34 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>timeout</i> ticks for this semaphore to
+     * become non-zero, and decrement it if it does.
+     *
+     * @param	timeout	the maximum number of clock ticks to wait. If this is
+     *			not positive, the semaphore is only decremented if it
+     *			is already non-zero.
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean decremented = true;
+
+	if (value == 0) {
+	    KThread thread = KThread.currentThread();
+	    waitQueue.waitForAccess(thread);
+	    Trace.record(Trace.eventWait, thread, waitQueue);
+	    decremented = ThreadedKernel.alarm.waitForAccess(waitQueue,
+							     timeout);
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -57,7 +86,9 @@ public class Semaphore {
 
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
-	    thread.ready();
+	    Trace.record(Trace.eventNext, thread, waitQueue);
+	    if (!ThreadedKernel.alarm.cancel(thread))
+		thread.ready();
 	}
 	else {
 	    value++;
@@ -1,76 +1,236 @@
 package nachos.threads;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, kept in an array used as a ring buffer. The queue
+ * is either <i>growable</i>, in which case the array doubles whenever it is
+ * full, or <i>bounded</i>, in which case adding to a full queue blocks until
+ * another thread removes something.
+ *
+ * <p>
+ * <tt>addAll()</tt> and <tt>drainTo()</tt> move a whole batch of objects
+ * while holding the queue's lock once, and <tt>poll()</tt> removes an object
+ * without waiting for one.
  */
-public class SynchList {
+public class SynchList<T> {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new growable synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(initialCapacity, false);
+    }
+
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the most objects the queue can hold. Must be
+     *				positive.
+     */
+    public SynchList(int capacity) {
+	this(capacity, true);
+    }
+
+    private SynchList(int capacity, boolean bounded) {
+	Lib.assertTrue(capacity > 0);
+
+	this.bounded = bounded;
+	items = new Object[capacity];
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = bounded ? new Condition2(lock) : null;
     }
 
     /**
      * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * waiting in <tt>removeFirst()</tt>, it is woken up. If the queue is
+     * bounded and full, wait until there is room.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
-    public void add(Object o) {
+    public void add(T o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
+	while (!put(o))
+	    listFull.sleep();
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add every object in the specified collection to the end of the queue,
+     * in the collection's order, waking up as many threads waiting in
+     * <tt>removeFirst()</tt> as there are new objects. If the queue is bounded
+     * and becomes full, the objects added so far are handed out before
+     * waiting for room for the rest.
+     *
+     * @param	c	the objects to add. None may be <tt>null</tt>.
+     */
+    public void addAll(Collection<? extends T> c) {
+	lock.acquire();
+
+	int added = 0;
+	for (Iterator<? extends T> i=c.iterator(); i.hasNext(); ) {
+	    T o = i.next();
+	    Lib.assertTrue(o != null);
+
+	    while (!put(o)) {
+		wakeRemovers(added);
+		added = 0;
+		listFull.sleep();
+	    }
+	    added++;
+	}
+	wakeRemovers(added);
+
+	lock.release();
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
      *
      * @return	the element removed from the front of the queue.
      */
-    public Object removeFirst() {
-	Object o;
+    public T removeFirst() {
+	T o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (size == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = take();
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * waiting.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue is empty.
+     */
+    public T poll() {
+	T o = null;
+
+	lock.acquire();
+	if (size > 0)
+	    o = take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, without
+     * waiting, and add them to the specified collection in order.
+     *
+     * @param	c	the collection to add the removed objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+	lock.acquire();
+
+	int count = Math.min(size, max);
+	for (int i=0; i<count; i++)
+	    c.add(take());
+
+	lock.release();
+
+	return count;
+    }
+
+    /**
+     * Return the number of objects in the queue. As with semaphores, the
+     * answer may be out of date by the time the caller looks at it.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add an object to the end of the ring buffer, growing it if the queue is
+     * not bounded. The lock must be held.
+     *
+     * @return	<tt>false</tt> if the queue is bounded and full.
+     */
+    private boolean put(T o) {
+	if (size == items.length) {
+	    if (bounded)
+		return false;
+
+	    Object[] grown = new Object[items.length*2];
+	    for (int i=0; i<size; i++)
+		grown[i] = items[(head+i) % items.length];
+	    items = grown;
+	    head = 0;
+	}
+
+	int tail = head + size;
+	if (tail >= items.length)
+	    tail -= items.length;
+	items[tail] = o;
+	size++;
+	return true;
+    }
+
+    /**
+     * Remove the object at the front of the non-empty ring buffer, and wake
+     * up a thread waiting for room if the queue is bounded. The lock must be
+     * held.
+     */
+    @SuppressWarnings("unchecked")
+    private T take() {
+	T o = (T) items[head];
+	items[head] = null;
+	if (++head == items.length)
+	    head = 0;
+	size--;
+
+	if (bounded)
+	    listFull.wake();
+	return o;
+    }
+
+    /**
+     * Wake up at most <i>count</i> threads waiting for the queue to be
+     * non-empty. The lock must be held.
+     */
+    private void wakeRemovers(int count) {
+	for (int i=0; i<count && listEmpty.getThreadCount() > 0; i++)
+	    listEmpty.wake();
+    }
+
     private static class PingTest implements Runnable {
-	PingTest(SynchList ping, SynchList pong) {
+	PingTest(SynchList<Integer> ping, SynchList<Integer> pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
 	}
 
-	private SynchList ping;
-	private SynchList pong;
+	private SynchList<Integer> ping;
+	private SynchList<Integer> pong;
     }
 
     /**
      * Test that this module is working.
      */
     public static void selfTest() {
-	SynchList ping = new SynchList();
-	SynchList pong = new SynchList();
+	SynchList<Integer> ping = new SynchList<Integer>();
+	SynchList<Integer> pong = new SynchList<Integer>();
 
 	new KThread(new PingTest(ping, pong)).setName("ping").fork();
 
@@ -81,8 +241,53 @@ public class SynchList {
 	}
     }
 
-    private LinkedList<Object> list;
+    /**
+     * Have a thread feed a small bounded queue in batches of varying size
+     * while the current thread drains it in batches, and check that every
+     * object comes out once and in order, and that <tt>poll()</tt> then
+     * finds the queue empty.
+     */
+    public static void batchTest() {
+	final int total = Config.getInteger("SynchList.batchTotal", 1000);
+	final SynchList<Integer> bounded = new SynchList<Integer>(7);
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    LinkedList<Integer> batch = new LinkedList<Integer>();
+		    for (int i=0; i<total; i++) {
+			batch.add(Integer.valueOf(i));
+			if (batch.size() == 1 + i%13 || i == total-1) {
+			    bounded.addAll(batch);
+			    batch.clear();
+			}
+		    }
+		}
+	    }).setName("producer");
+	producer.fork();
+
+	LinkedList<Integer> received = new LinkedList<Integer>();
+	while (received.size() < total) {
+	    received.add(bounded.removeFirst());
+	    bounded.drainTo(received, 5);
+	}
+	producer.join();
+
+	Lib.assertTrue(bounded.size() == 0 && bounded.poll() == null);
+	for (int i=0; i<total; i++)
+	    Lib.assertTrue(received.removeFirst().intValue() == i);
+
+	System.out.println("SynchList: " + total
+			   + " objects through a bounded queue in batches passed");
+    }
+
+    private static final int initialCapacity = 16;
+
+    private boolean bounded;
+    private Object[] items;
+    /** The index in <tt>items</tt> of the front of the queue. */
+    private int head = 0;
+    private int size = 0;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 }
-
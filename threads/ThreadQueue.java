@@ -1,5 +1,10 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,8 +96,58 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that access has passed to the specified
+     * thread while other threads are still waiting, for example to one of
+     * the readers still holding a read-write lock. If the queue transfers
+     * priority, the waiting threads donate to the new thread from now on.
+     *
+     * <p>
+     * The default takes every waiting thread off the queue, calls
+     * <tt>acquire()</tt>, and puts them back in the order they came off.
+     * Queues whose <tt>acquire()</tt> works while threads are waiting should
+     * override this to call it directly, since taking a thread off a queue
+     * and putting it back may change its scheduling state.
+     *
+     * @param	thread	the thread that now has access.
+     */
+    public void transferAccess(KThread thread) {
+	LinkedList<KThread> waiting = new LinkedList<KThread>();
+	KThread next;
+	while ((next = nextThread()) != null)
+	    waiting.add(next);
+
+	acquire(thread);
+
+	for (Iterator<KThread> i=waiting.iterator(); i.hasNext(); )
+	    waitForAccess(i.next());
+    }
+
+    /**
+     * Remove the specified thread from this queue without giving it access,
+     * if it is waiting for access. A thread that stops waiting before it is
+     * given access, for example because its wait timed out, calls this
+     * method.
+     *
+     * <p>
+     * Queues that do not support timed waits need not implement this
+     * method; calling it on them fails an assertion.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("this thread queue does not support timed waits");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
     public abstract void print();
+
+    /** A number identifying this queue in traces. */
+    final int id = numCreated++;
+    /** Number of thread queues created. */
+    private static int numCreated = 0;
 }
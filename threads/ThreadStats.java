@@ -0,0 +1,55 @@
+package nachos.threads;
+
+/**
+ * Statistics kept for a single <tt>KThread</tt>: how much simulated time it
+ * has spent running user and kernel code, waiting on the ready queue, and
+ * blocked, and how often it has been dispatched and acquired a lock.
+ *
+ * @see	nachos.threads.KThread#getStats()
+ */
+public class ThreadStats {
+    /**
+     * Allocate a new <tt>ThreadStats</tt> object with every count zero.
+     */
+    ThreadStats() {
+    }
+
+    /**
+     * Return a one-line summary of these statistics.
+     *
+     * @return	a summary of these statistics.
+     */
+    public String toString() {
+	return "user " + userTicks + ", kernel " + kernelTicks
+	    + ", ready " + readyTicks + ", blocked " + blockedTicks
+	    + ", switches " + numContextSwitches
+	    + ", locks " + numLockAcquires;
+    }
+
+    /**
+     * The amount of simulated time the thread has spent executing user
+     * instructions.
+     */
+    public long userTicks = 0;
+    /**
+     * The amount of simulated time the thread has spent running, but not
+     * executing user instructions.
+     */
+    public long kernelTicks = 0;
+    /**
+     * The amount of simulated time the thread has spent on the ready queue.
+     */
+    public long readyTicks = 0;
+    /**
+     * The amount of simulated time the thread has spent blocked, since it was
+     * first made ready.
+     */
+    public long blockedTicks = 0;
+    /**
+     * The number of times the processor has been switched to the thread from
+     * another thread.
+     */
+    public int numContextSwitches = 0;
+    /** The number of times the thread has acquired a <tt>Lock</tt>. */
+    public int numLockAcquires = 0;
+}
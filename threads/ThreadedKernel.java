@@ -31,6 +31,9 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	// start tracing before the first thread is created
+	Trace.initialize();
+
 	// start threading
 	new KThread(null);
 
@@ -54,6 +57,33 @@ public class ThreadedKernel extends Kernel {
 	Communicator.selfTest();
 	ReactWater.selfTest();
 	
+	if (Config.getBoolean("PriorityScheduler.selfTest", false))
+	    PriorityScheduler.selfTest();
+	if (Config.getBoolean("LotteryScheduler.selfTest", false))
+	    LotteryScheduler.selfTest();
+	if (Config.getBoolean("MLFQScheduler.selfTest", false))
+	    MLFQScheduler.selfTest();
+	if (Config.getBoolean("CFSScheduler.selfTest", false))
+	    CFSScheduler.selfTest();
+	if (Config.getBoolean("EDFScheduler.selfTest", false))
+	    EDFScheduler.selfTest();
+	if (Config.getBoolean("SynchList.batchTest", false))
+	    SynchList.batchTest();
+	if (Config.getBoolean("Alarm.timeoutTest", false))
+	    Alarm.timeoutTest();
+	if (Config.getBoolean("ReadWriteLock.selfTest", false))
+	    ReadWriteLock.selfTest();
+	if (Config.getBoolean("Communicator.pipelineTest", false))
+	    Communicator.pipelineTest();
+	if (Config.getBoolean("KThread.pingPongTest", false))
+	    KThread.pingPongTest();
+	if (Config.getBoolean("Interrupt.selfTest", false))
+	    Interrupt.selfTest();
+	if (Config.getBoolean("Interrupt.deviceTest", false))
+	    Interrupt.deviceTest();
+	if (Config.getBoolean("Lib.conversionTest", false))
+	    new LibTest().run();
+	
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 		}
@@ -68,9 +98,12 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, first writing out the scheduling trace if
+     * tracing is enabled. Never returns.
      */
     public void terminate() {
+	Trace.dump();
+
 	Machine.halt();
     }
 
@@ -89,4 +122,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static CFSScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
 }
@@ -0,0 +1,195 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Records scheduling events into a preallocated ring buffer, and writes them
+ * out as a Chrome trace that can be loaded into <tt>chrome://tracing</tt> or
+ * Perfetto.
+ *
+ * <p>
+ * Each event is the time it happened, its type, the ID of the thread it
+ * concerns, and one argument: the ID of the queue the thread is waiting on
+ * or leaving, or for a context switch, the ID of the thread switched from.
+ * Recording an event stores four values into arrays and allocates nothing,
+ * so tracing can be left on while measuring. Once the buffer is full, each
+ * new event overwrites the oldest.
+ *
+ * <p>
+ * Tracing is enabled by setting <tt>Trace.file</tt> in
+ * <tt>nachos.conf</tt> to the name of a file in the kernel's file system,
+ * which is written when the kernel terminates. <tt>Trace.bufferSize</tt> sets
+ * the number of events kept, and must be a power of two.
+ */
+public class Trace {
+    /**
+     * Prevent instantiation.
+     */
+    private Trace() {
+    }
+
+    /**
+     * Allocate the ring buffer if tracing is enabled. Called by
+     * <tt>ThreadedKernel.initialize()</tt> before the first thread is
+     * created.
+     */
+    public static void initialize() {
+	fileName = Config.getString("Trace.file", null);
+	if (fileName == null)
+	    return;
+
+	int size = Config.getInteger("Trace.bufferSize", 65536);
+	Lib.assertTrue(size > 0 && (size & (size-1)) == 0);
+
+	ticks = new long[size];
+	types = new byte[size];
+	threads = new int[size];
+	args = new int[size];
+	mask = size-1;
+
+	enabled = true;
+    }
+
+    /**
+     * Record an event concerning a thread and a queue.
+     *
+     * @param	type	the type of event.
+     * @param	thread	the thread.
+     * @param	queue	the queue the thread is waiting on or leaving.
+     */
+    static void record(byte type, KThread thread, ThreadQueue queue) {
+	if (enabled)
+	    record(type, thread, queue.id);
+    }
+
+    /**
+     * Record an event concerning a thread.
+     *
+     * @param	type	the type of event.
+     * @param	thread	the thread.
+     * @param	arg	the ID of a queue or thread, or -1 if there is none.
+     */
+    static void record(byte type, KThread thread, int arg) {
+	if (!enabled)
+	    return;
+
+	int i = (int) (numEvents++) & mask;
+	ticks[i] = Machine.timer().getTime();
+	types[i] = type;
+	threads[i] = thread.getID();
+	args[i] = arg;
+    }
+
+    /**
+     * Stop tracing and write the events in the buffer to
+     * <tt>Trace.file</tt>. Context switches become slices showing when each
+     * thread ran, and every other event becomes an instant on its thread's
+     * track. Simulated ticks are shown as microseconds. Does nothing if
+     * tracing is not enabled.
+     */
+    public static void dump() {
+	if (!enabled)
+	    return;
+
+	enabled = false;
+
+	FileSystem fileSystem = ThreadedKernel.fileSystem;
+	OpenFile file = (fileSystem == null) ? null :
+	    fileSystem.open(fileName, true);
+	if (file == null) {
+	    System.out.println("Trace: unable to open " + fileName);
+	    return;
+	}
+
+	long first = Math.max(numEvents - ticks.length, 0);
+
+	StringBuffer out = new StringBuffer("{\"traceEvents\":[\n");
+	boolean comma = false;
+
+	long runningSince = -1;
+	int running = -1;
+
+	for (long n=first; n<numEvents; n++) {
+	    int i = (int) n & mask;
+
+	    if (types[i] == eventSwitch) {
+		if (running != -1) {
+		    appendSlice(out, comma, running, runningSince, ticks[i]);
+		    comma = true;
+		}
+		running = threads[i];
+		runningSince = ticks[i];
+		continue;
+	    }
+
+	    if (comma)
+		out.append(",\n");
+	    comma = true;
+
+	    out.append("{\"name\":\"" + eventNames[types[i]]
+		       + "\",\"ph\":\"i\",\"s\":\"t\",\"ts\":" + ticks[i]
+		       + ",\"pid\":0,\"tid\":" + threads[i]
+		       + ",\"args\":{\"queue\":" + args[i] + "}}");
+
+	    if (out.length() >= flushSize)
+		flush(file, out);
+	}
+
+	if (running != -1)
+	    appendSlice(out, comma, running, runningSince,
+			Machine.timer().getTime());
+
+	out.append("\n]}\n");
+	flush(file, out);
+	file.close();
+
+	System.out.println("Trace: wrote " + (numEvents - first)
+			   + " events to " + fileName + ", dropped " + first);
+    }
+
+    private static void appendSlice(StringBuffer out, boolean comma,
+				    int thread, long start, long end) {
+	if (comma)
+	    out.append(",\n");
+
+	out.append("{\"name\":\"running\",\"ph\":\"X\",\"ts\":" + start
+		   + ",\"dur\":" + (end - start)
+		   + ",\"pid\":0,\"tid\":" + thread + "}");
+    }
+
+    private static void flush(OpenFile file, StringBuffer out) {
+	byte[] bytes = out.toString().getBytes();
+	file.write(bytes, 0, bytes.length);
+	out.setLength(0);
+    }
+
+    /** A thread was added to the ready queue. */
+    static final byte eventReady = 0;
+    /** A thread went to sleep. */
+    static final byte eventSleep = 1;
+    /** The processor was switched to a thread. */
+    static final byte eventSwitch = 2;
+    /** A thread began waiting on a queue. */
+    static final byte eventWait = 3;
+    /** A thread was removed from a queue. */
+    static final byte eventNext = 4;
+    /** A thread acquired a lock. */
+    static final byte eventAcquire = 5;
+    /** A thread released a lock. */
+    static final byte eventRelease = 6;
+
+    private static final String[] eventNames = {
+	"ready", "sleep", "switch", "wait", "next", "acquire", "release"
+    };
+
+    private static final int flushSize = 8192;
+
+    private static boolean enabled = false;
+    private static String fileName = null;
+
+    private static long[] ticks;
+    private static byte[] types;
+    private static int[] threads, args;
+    private static int mask;
+    private static long numEvents = 0;
+}
@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -131,14 +132,15 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memory.capacity())
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = Math.min(length, memory.capacity()-vaddr);
+	memory.position(vaddr);
+	memory.get(data, offset, amount);
 
 	return amount;
     }
@@ -174,14 +176,15 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memory.capacity())
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = Math.min(length, memory.capacity()-vaddr);
+	memory.position(vaddr);
+	memory.put(data, offset, amount);
 
 	return amount;
     }
@@ -340,9 +343,9 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 